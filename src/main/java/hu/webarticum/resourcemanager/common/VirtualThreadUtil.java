@@ -0,0 +1,37 @@
+package hu.webarticum.resourcemanager.common;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Utilities for running blocking tasks on virtual threads.
+ *
+ * This is the fallback implementation for Java versions without virtual threads.
+ * On Java 21 or newer, the multi-release variant of this class is used.
+ */
+public final class VirtualThreadUtil {
+
+    private VirtualThreadUtil() {
+        // preventing instantiation
+    }
+
+
+    /**
+     * Checks if virtual threads are available on the current platform.
+     *
+     * @return <code>true</code> if virtual threads are available, <code>false</code> otherwise
+     */
+    public static boolean isAvailable() {
+        return false;
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for each task.
+     *
+     * @return The executor
+     * @throws UnsupportedOperationException if virtual threads are not available
+     */
+    public static Executor newExecutor() {
+        throw new UnsupportedOperationException("Virtual threads require Java 21 or newer");
+    }
+
+}
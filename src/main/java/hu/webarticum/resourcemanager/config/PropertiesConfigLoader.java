@@ -9,6 +9,8 @@ import java.util.Map;
 import java.util.Objects;
 
 import hu.webarticum.resourcemanager.common.CastUtil;
+import hu.webarticum.resourcemanager.resource.ClosingFailedException;
+import hu.webarticum.resourcemanager.resource.OpeningFailedException;
 import hu.webarticum.resourcemanager.resource.ResourceKey;
 import hu.webarticum.resourcemanager.resource.ResourceManager;
 
@@ -17,8 +19,9 @@ import hu.webarticum.resourcemanager.resource.ResourceManager;
  *
  * Loads low-level properties from one or more {@link PropertiesSupplier},
  * and synchronize the derived high-level items with a {@link ResourceManager}.
- * If no error occured, the changed items will be closed in the
- * {@link ResourceManager}, so the dependant resources will restart.
+ * If no error occured, the changed items will be refreshed in the
+ * {@link ResourceManager} (see {@link ResourceManager#refresh(ResourceKey)}),
+ * so the dependant resources will restart.
  */
 public class PropertiesConfigLoader implements ConfigLoader {
 
@@ -75,6 +78,8 @@ public class PropertiesConfigLoader implements ConfigLoader {
      *
      * @throws IllegalArgumentException If an invalid value found
      * @throws IOException If any other error occured
+     * @throws ClosingFailedException If closing of any outdated resource failed,
+     *         after all the changed items were refreshed
      */
     @Override
     public synchronized void reload() throws IOException {
@@ -86,17 +91,45 @@ public class PropertiesConfigLoader implements ConfigLoader {
         } catch (Exception e) {
             throw new IOException("Configuration validation failed", e);
         }
-        if (loadedConfigItems != null) {
-            closeChangedConfigItems(newConfigItems);
-        }
+        Map<ResourceKey<?>, Object> oldConfigItems = loadedConfigItems;
         loadedConfigItems = newConfigItems;
+        if (oldConfigItems != null) {
+            refreshChangedConfigItems(oldConfigItems, newConfigItems);
+        }
     }
 
-    private void closeChangedConfigItems(Map<ResourceKey<?>, Object> newConfigItems) {
+    private void refreshChangedConfigItems(
+            Map<ResourceKey<?>, Object> oldConfigItems, Map<ResourceKey<?>, Object> newConfigItems) {
+        
+        ClosingFailedException closingFailure = null;
         for (PropertiesConfigItemDefinition<?> definition : definitions) {
             ResourceKey<?> key = definition.getKey();
-            if (!Objects.equals(newConfigItems.get(key), loadedConfigItems.get(key))) {
+            if (!Objects.equals(newConfigItems.get(key), oldConfigItems.get(key))) {
+                try {
+                    refreshOrClose(key);
+                } catch (ClosingFailedException e) {
+                    if (closingFailure == null) {
+                        closingFailure = e;
+                    } else {
+                        closingFailure.addSuppressed(e);
+                    }
+                }
+            }
+        }
+        if (closingFailure != null) {
+            throw closingFailure;
+        }
+    }
+
+    private void refreshOrClose(ResourceKey<?> key) {
+        try {
+            resourceManager.refresh(key);
+        } catch (OpeningFailedException e) {
+            try {
                 resourceManager.close(key);
+            } catch (ClosingFailedException closingException) {
+                closingException.addSuppressed(e);
+                throw closingException;
             }
         }
     }
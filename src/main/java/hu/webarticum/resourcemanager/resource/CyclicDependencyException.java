@@ -10,7 +10,11 @@ public class CyclicDependencyException extends RuntimeException {
     
     // TODO: get information about the cycle
     public CyclicDependencyException() {
-        super("Cyclic dependency detected");
+        this("Cyclic dependency detected");
+    }
+
+    public CyclicDependencyException(String message) {
+        super(message);
     }
     
 }
\ No newline at end of file
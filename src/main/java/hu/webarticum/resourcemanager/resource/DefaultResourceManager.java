@@ -1,28 +1,142 @@
 package hu.webarticum.resourcemanager.resource;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 import hu.webarticum.resourcemanager.common.CastUtil;
+import hu.webarticum.resourcemanager.common.VirtualThreadUtil;
 
 /**
  * The default {@link ResourceManager} implementation
+ *
+ * Modifications are synchronized on this manager,
+ * while lookups and reading of open resources are lock-free.
+ * Factories are called without holding the manager lock:
+ * concurrent openings of the same key wait for a single creation,
+ * while unrelated keys can be opened in parallel.
+ * Asynchronous operations run on the executor given in the constructor,
+ * which is {@link ForkJoinPool#commonPool()} by default.
+ * Open states are tracked incrementally by entry ids,
+ * so open state queries do not scan all the entries.
+ * Closing a leased resource (see {@link #acquire(ResourceKey)}) waits for the leases
+ * to be released, but no longer than the drain timeout.
+ * Open resources can be replaced without downtime via {@link #refresh(ResourceKey)}.
+ * Resources with an idle timeout (see {@link #setIdleTimeout(ResourceKey, Duration)})
+ * are closed by {@link #evictIdle()} when they were not accessed for a while.
+ * The total weight of open resources can be bounded (see {@link #setOpenBudget(long)}),
+ * least recently used resources are closed to make room for new ones.
+ * Reclaimable resources (see {@link #setReclaimable(ResourceKey, boolean)})
+ * are held via soft references, so the garbage collector can reclaim them.
+ * Child managers (see {@link #createChild(String)}) resolve missing keys from their parent.
+ * Openings with a timeout (see {@link #open(ResourceKey, Duration)})
+ * propagate their deadline through the dependencies.
+ * After {@link #freeze()} the registry can not be modified,
+ * and the dependency graph is traversed via precompiled arrays.
  */
 public class DefaultResourceManager implements ResourceManager {
 
+    private static final Duration DEFAULT_DRAIN_TIMEOUT = Duration.ofSeconds(30);
+
+    private static final ThreadLocal<Long> OPEN_DEADLINES = new ThreadLocal<>();
+
+    private static final int READ_TRACKING_IDLE = 1;
+
+    private static final int READ_TRACKING_BUDGET = 2;
+
+    private static final int READ_REFRESHING_UNIT = 4;
+
+    private static final Object RETRY = new Object();
+
+
     private final String label;
 
+    private final Executor asyncExecutor;
+
+    private final DefaultResourceManager parent;
+
+    /**
+     * Descendants holding leases of this manager's resources,
+     * referenced until they release them, even if the descendant itself was dropped
+     */
+    private final Set<DefaultResourceManager> leasingChildren = Collections.synchronizedSet(new HashSet<>());
+
+    private int leasingEntryCount = 0;
+
     private final Map<ResourceKey<?>, Entry<?>> entries = new LinkedHashMap<>();
 
-    private final Map<ResourceKey<?>, Set<ResourceKey<?>>> dependants = new HashMap<>();
+    private final Map<ResourceKey<?>, Entry<?>> publishedEntries = new ConcurrentHashMap<>();
+
+    private final DependencyGraph graph = new DependencyGraph();
+
+    private final Map<Thread, Transition> waitingThreads = new HashMap<>();
+
+    private final BitSet usedIds = new BitSet();
+
+    private final BitSet openIds = new BitSet();
+
+    private Entry<?>[] entriesById = new Entry<?>[16];
+
+    private volatile int openCount = 0;
+
+    private volatile long openWeight = 0L;
+
+    private volatile long openBudget = Long.MAX_VALUE;
+
+    private final ReferenceQueue<Object> reclaimedReferences = new ReferenceQueue<>();
+
+    private volatile boolean anyReclaimable = false;
+
+    private volatile int reclaimedCount = 0;
+
+    private ResourceSnapshot.KeyTable snapshotKeyTable = null;
+
+    private volatile ResourceSnapshot snapshot = null;
+
+    private FrozenTopology frozenTopology = null;
+
+    private volatile Duration drainTimeout = DEFAULT_DRAIN_TIMEOUT;
+
+    /**
+     * Read tracking flags in the lower bits, number of running refreshes in the upper bits,
+     * zero if reads need no extra work
+     */
+    private final AtomicInteger readState = new AtomicInteger(0);
+
+    private final ThreadLocal<Map<Entry<?>, Object>> stagedResources = new ThreadLocal<>();
 
 
     /**
@@ -38,7 +152,70 @@ public class DefaultResourceManager implements ResourceManager {
      * @param label
      */
     public DefaultResourceManager(String label) {
+        this(label, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a new empty resource manager with the specified label and async executor
+     *
+     * @param label
+     * @param asyncExecutor Default executor for asynchronous operations
+     */
+    public DefaultResourceManager(String label, Executor asyncExecutor) {
+        this(label, asyncExecutor, null);
+    }
+
+    private DefaultResourceManager(String label, Executor asyncExecutor, DefaultResourceManager parent) {
         this.label = label;
+        this.asyncExecutor = asyncExecutor;
+        this.parent = parent;
+    }
+
+    /**
+     * Creates a new empty resource manager that runs asynchronous operations on virtual threads.
+     *
+     * Virtual threads are available on Java 21 or newer.
+     * On older platforms, {@link ForkJoinPool#commonPool()} will be used, as by default.
+     *
+     * @param label
+     * @return The new resource manager
+     */
+    public static DefaultResourceManager withVirtualThreads(String label) {
+        Executor executor = VirtualThreadUtil.isAvailable() ?
+                VirtualThreadUtil.newExecutor() :
+                ForkJoinPool.commonPool();
+        return new DefaultResourceManager(label, executor);
+    }
+
+    /**
+     * Creates a child manager for short-lived resources, e. g. for a request or a job.
+     *
+     * The child owns only its own entries:
+     * keys not registered in the child are resolved from this manager
+     * (on reading, opening, leasing and in dependencies),
+     * but closing, removal and the open state queries of the child affect its own entries only.
+     * While a resource of the child is open, its dependencies in this manager are leased.
+     * Closing or refreshing them first closes the dependant resources in the children,
+     * so it does not wait for the children to close them.
+     * A child holding leases is referenced by this manager until it releases them,
+     * so dropping a child without closing it does not block the resources of this manager.
+     * Keys of this manager can not be registered again in the child.
+     * Creating a child does not depend on the size of this manager.
+     *
+     * @param label The label of the child
+     * @return The new child manager
+     */
+    public DefaultResourceManager createChild(String label) {
+        return new DefaultResourceManager(label, asyncExecutor, this);
+    }
+
+    /**
+     * Gets the parent of this manager
+     *
+     * @return The parent, or <code>null</code> if this is not a child manager
+     */
+    public DefaultResourceManager getParent() {
+        return parent;
     }
 
 
@@ -52,6 +229,275 @@ public class DefaultResourceManager implements ResourceManager {
         return label;
     }
 
+    /**
+     * Gets the default executor of asynchronous operations
+     *
+     * This can also be passed to {@link #open(ResourceKey, Executor)}
+     * and {@link #closeAll(Executor, Duration)}.
+     *
+     * @return The async executor
+     */
+    public Executor getAsyncExecutor() {
+        return asyncExecutor;
+    }
+
+    /**
+     * Gets the maximum time to wait for leases to be released before closing
+     *
+     * @return The drain timeout
+     */
+    public Duration getDrainTimeout() {
+        return drainTimeout;
+    }
+
+    /**
+     * Sets the maximum time to wait for leases to be released before closing.
+     *
+     * If the timeout expires, closing will fail with {@link ClosingFailedException}.
+     *
+     * @param drainTimeout The drain timeout
+     */
+    public void setDrainTimeout(Duration drainTimeout) {
+        this.drainTimeout = drainTimeout;
+    }
+
+    /**
+     * Gets the idle timeout of a resource
+     *
+     * @param key The key of the resource
+     * @return The idle timeout, or <code>null</code> if the resource is never evicted
+     * @throws NoSuchElementException if key was not registered
+     */
+    public Duration getIdleTimeout(ResourceKey<?> key) {
+        long idleTimeoutNanos = getEntry(key).idleTimeoutNanos;
+        return idleTimeoutNanos > 0L ? Duration.ofNanos(idleTimeoutNanos) : null;
+    }
+
+    /**
+     * Sets the idle timeout of a resource.
+     *
+     * If the open resource was not accessed within the timeout,
+     * {@link #evictIdle()} will close it, and the next opening will reopen it.
+     * Setting the timeout counts as an access.
+     *
+     * @param key The key of the resource
+     * @param idleTimeout The idle timeout, or <code>null</code> to never evict the resource
+     * @throws NoSuchElementException if key was not registered
+     * @throws IllegalArgumentException if the timeout is not positive
+     */
+    public void setIdleTimeout(ResourceKey<?> key, Duration idleTimeout) {
+        if (idleTimeout != null && (idleTimeout.isNegative() || idleTimeout.isZero())) {
+            throw new IllegalArgumentException(String.format("Illegal idle timeout: %s", idleTimeout));
+        }
+        Entry<?> entry = getEntry(key);
+        entry.idleTimeoutNanos = idleTimeout != null ? idleTimeout.toNanos() : 0L;
+        entry.accessed = true;
+        if (idleTimeout != null) {
+            readState.updateAndGet(state -> state | READ_TRACKING_IDLE);
+        }
+    }
+
+    /**
+     * Gets the weight of a resource
+     *
+     * @param key The key of the resource
+     * @return The weight of the resource
+     * @throws NoSuchElementException if key was not registered
+     */
+    public long getWeight(ResourceKey<?> key) {
+        return getEntry(key).weight;
+    }
+
+    /**
+     * Sets the weight of a resource, which is 1 by default.
+     *
+     * The weight can be any measure of the cost of the open resource, e. g. its size in bytes.
+     * The new weight applies from the next opening of the resource.
+     *
+     * @param key The key of the resource
+     * @param weight The weight
+     * @throws NoSuchElementException if key was not registered
+     * @throws IllegalArgumentException if the weight is negative
+     */
+    public void setWeight(ResourceKey<?> key, long weight) {
+        if (weight < 0L) {
+            throw new IllegalArgumentException(String.format("Illegal weight: %d", weight));
+        }
+        getEntry(key).weight = weight;
+    }
+
+    /**
+     * Gets the total weight of open resources
+     *
+     * @return The total weight of open resources
+     */
+    public long getOpenWeight() {
+        return openWeight;
+    }
+
+    /**
+     * Gets the budget for the total weight of open resources
+     *
+     * @return The budget, {@link Long#MAX_VALUE} if unbounded
+     */
+    public long getOpenBudget() {
+        return openBudget;
+    }
+
+    /**
+     * Sets the budget for the total weight of open resources.
+     *
+     * When opening a resource would exceed the budget,
+     * the least recently used resources are closed first.
+     * Resources with an open dependant, leased resources, resources in transition
+     * and dependencies of the opened resource are never closed for this reason.
+     * If not enough weight can be freed, the resource is opened anyway.
+     * The budget is checked on opening only,
+     * lowering it does not close any resource immediately.
+     *
+     * @param openBudget The budget, {@link Long#MAX_VALUE} for unbounded
+     * @throws IllegalArgumentException if the budget is negative
+     */
+    public void setOpenBudget(long openBudget) {
+        if (openBudget < 0L) {
+            throw new IllegalArgumentException(String.format("Illegal budget: %d", openBudget));
+        }
+        this.openBudget = openBudget;
+        if (openBudget != Long.MAX_VALUE) {
+            readState.updateAndGet(state -> state | READ_TRACKING_BUDGET);
+        } else {
+            readState.updateAndGet(state -> state & ~READ_TRACKING_BUDGET);
+        }
+    }
+
+    /**
+     * Checks if a resource is reclaimable
+     *
+     * @param key The key of the resource
+     * @return <code>true</code> if the resource is held via a soft reference, <code>false</code> otherwise
+     * @throws NoSuchElementException if key was not registered
+     */
+    public boolean isReclaimable(ResourceKey<?> key) {
+        return getEntry(key).reclaimable;
+    }
+
+    /**
+     * Sets whether a resource is reclaimable.
+     *
+     * A reclaimable resource is held via a {@link SoftReference} while no dependant is open,
+     * so the garbage collector can reclaim it under memory pressure.
+     * A reclaimed resource counts as closed (see {@link #isReclaimed(ResourceKey)}),
+     * its closer is not called, and the next opening recreates it.
+     * While a dependant is open or being opened, the resource is held strongly.
+     * Use this for pure in-memory resources only.
+     *
+     * @param key The key of the resource
+     * @param reclaimable <code>true</code> to hold the resource via a soft reference
+     * @throws NoSuchElementException if key was not registered
+     */
+    public synchronized void setReclaimable(ResourceKey<?> key, boolean reclaimable) {
+        Entry<?> entry = getEntry(key);
+        entry.reclaimable = reclaimable;
+        if (reclaimable) {
+            anyReclaimable = true;
+        }
+        holdResource(entry);
+    }
+
+    /**
+     * Checks if a resource was reclaimed by the garbage collector since its last opening
+     *
+     * @param key The key of the resource
+     * @return <code>true</code> if the resource was reclaimed, <code>false</code> otherwise
+     * @throws NoSuchElementException if key was not registered
+     */
+    public boolean isReclaimed(ResourceKey<?> key) {
+        Entry<?> entry = getEntry(key);
+        expungeReclaimed();
+        return entry.reclaimed || (entry.reclaimableResource != null && entry.resource() == null);
+    }
+
+    /**
+     * Gets the number of resources reclaimed by the garbage collector and not reopened since
+     *
+     * @return The number of reclaimed resources
+     */
+    public int countReclaimed() {
+        expungeReclaimed();
+        return reclaimedCount;
+    }
+
+    /**
+     * Clears the soft reference of a reclaimable resource,
+     * as the garbage collector would do under memory pressure
+     *
+     * @param key The key of the resource
+     * @return <code>true</code> if the resource was reclaimed, <code>false</code> if it was closed or held strongly
+     */
+    synchronized boolean reclaim(ResourceKey<?> key) {
+        Entry<?> entry = getEntry(key);
+        Reference<?> reference = entry.reclaimableResource;
+        if (reference == null || entry.resource != null || reference.get() == null) {
+            return false;
+        }
+        reference.clear();
+        reference.enqueue();
+        return true;
+    }
+
+    /**
+     * Schedules {@link #evictIdle()} to run periodically.
+     *
+     * Resources failed to close stay open, and will be evicted again on the next run.
+     * Cancel the returned future to stop the eviction.
+     *
+     * @param scheduler The scheduler to use
+     * @param interval The delay between two runs
+     * @return The future of the scheduled task
+     */
+    public ScheduledFuture<?> scheduleIdleEviction(ScheduledExecutorService scheduler, Duration interval) {
+        long intervalNanos = interval.toNanos();
+        return scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                evictIdle();
+            } catch (ClosingFailedException e) {
+                // will be retried on the next run
+            }
+        }, intervalNanos, intervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Freezes the topology of this manager.
+     *
+     * Entries and dependencies will be compiled into arrays,
+     * and all graph operations will use them.
+     * Resources still can be opened and closed,
+     * but registering and removing resources will be rejected.
+     * Calling this method on a frozen manager has no effect.
+     *
+     * @throws NoSuchElementException if any dependency is not registered
+     */
+    public synchronized void freeze() {
+        if (frozenTopology == null) {
+            frozenTopology = new FrozenTopology();
+        }
+    }
+
+    /**
+     * Checks if this manager is frozen
+     *
+     * @return <code>true</code> if {@link #freeze()} was called, <code>false</code> otherwise
+     */
+    public synchronized boolean isFrozen() {
+        return frozenTopology != null;
+    }
+
+    private void checkNotFrozen() {
+        if (frozenTopology != null) {
+            throw new IllegalStateException(String.format("Resource manager is frozen: %s", label));
+        }
+    }
+
     @Override
     public synchronized <T> void register(
             ResourceKey<T> key,
@@ -59,24 +505,61 @@ public class DefaultResourceManager implements ResourceManager {
             ResourceCloser<T> closer,
             Collection<? extends ResourceKey<?>> dependencies) {
         
-        if (entries.containsKey(key)) {
+        checkNotFrozen();
+        if (containsKey(key)) {
             throw new DuplicateKeyException(key);
         }
-        checkCycle(key, dependencies);
-        entries.put(key, new Entry<>(key, factory, closer, dependencies));
-        for (ResourceKey<?> dependency : dependencies) {
-            dependants.computeIfAbsent(dependency, k -> new HashSet<>()).add(key);
+        Entry<T> entry = new Entry<>(key, factory, closer, dependencies);
+        graph.add(key, Arrays.asList(entry.dependecies));
+        putEntry(entry);
+    }
+
+    @Override
+    public synchronized void registerAll(Collection<? extends Registration<?>> registrations) {
+        checkNotFrozen();
+        Registration.validateBatch(registrations, this::containsKey);
+        List<Entry<?>> newEntries = new ArrayList<>(registrations.size());
+        Map<ResourceKey<?>, List<ResourceKey<?>>> dependenciesByKey = new LinkedHashMap<>();
+        for (Registration<?> registration : registrations) {
+            Entry<?> entry = createEntry(registration);
+            newEntries.add(entry);
+            dependenciesByKey.put(entry.key, Arrays.asList(entry.dependecies));
+        }
+        graph.addAll(dependenciesByKey);
+        for (Entry<?> entry : newEntries) {
+            putEntry(entry);
+        }
+    }
+
+    private <T> Entry<T> createEntry(Registration<T> registration) {
+        return new Entry<>(
+                registration.getKey(),
+                registration.getFactory(),
+                registration.getCloser(),
+                registration.getDependencies());
+    }
+
+    private void putEntry(Entry<?> entry) {
+        int id = usedIds.nextClearBit(0);
+        if (id == entriesById.length) {
+            entriesById = Arrays.copyOf(entriesById, id * 2);
         }
+        usedIds.set(id);
+        entriesById[id] = entry;
+        entry.id = id;
+        entries.put(entry.key, entry);
+        publishedEntries.put(entry.key, entry);
+        invalidateSnapshot(true);
     }
 
     @Override
-    public synchronized boolean isEmpty() {
-        return entries.isEmpty();
+    public boolean isEmpty() {
+        return publishedEntries.isEmpty();
     }
 
     @Override
-    public synchronized int size() {
-        return entries.size();
+    public int size() {
+        return publishedEntries.size();
     }
 
     @Override
@@ -85,70 +568,1497 @@ public class DefaultResourceManager implements ResourceManager {
     }
 
     @Override
-    public synchronized boolean containsKey(ResourceKey<?> key) {
-        return entries.containsKey(key);
+    public boolean containsKey(ResourceKey<?> key) {
+        return publishedEntries.containsKey(key) || (parent != null && parent.containsKey(key));
     }
 
     @Override
-    public synchronized <T> T get(ResourceKey<T> key) {
-        Entry<T> entry = CastUtil.cast(entries.get(key));
+    public <T> T get(ResourceKey<T> key) {
+        Entry<T> entry = CastUtil.cast(publishedEntries.get(key));
         if (entry == null) {
-            return null;
+            return parent != null ? parent.get(key) : null;
+        }
+        return currentResource(entry);
+    }
+
+    /**
+     * Gets the resource of the entry, or its new instance if it is being refreshed by the current thread
+     */
+    private <T> T currentResource(Entry<T> entry) {
+        int state = readState.get();
+        if (state == 0) {
+            return entry.resource();
+        }
+        return currentResource(entry, state);
+    }
+
+    private <T> T currentResource(Entry<T> entry, int state) {
+        boolean tracked = (state & READ_TRACKING_BUDGET) != 0 ||
+                ((state & READ_TRACKING_IDLE) != 0 && entry.idleTimeoutNanos > 0L);
+        if (tracked && !entry.accessed) {
+            // written only when unset, repeated reads between two eviction checks do not write
+            entry.accessed = true;
+        }
+        if (state >= READ_REFRESHING_UNIT) {
+            Map<Entry<?>, Object> staged = stagedResources.get();
+            if (staged != null && staged.containsKey(entry)) {
+                return CastUtil.cast(staged.get(entry));
+            }
+        }
+        return entry.resource();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Accessing the resource via the handle is lock-free.
+     * Unless an idle timeout or an open budget was set, or a refresh is running,
+     * it is a volatile check of the read state followed by reading the resource.
+     */
+    @Override
+    public <T> ResourceHandle<T> handle(ResourceKey<T> key) {
+        if (isParentKey(key)) {
+            return parent.handle(key);
         }
-        return entry.resource;
+        return getEntry(key);
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * While the lease is held, closing of the resource waits for its release,
+     * and no new lease will be given for a resource being closed.
+     * Leasing and releasing an open resource is lock-free,
+     * and no lock is held while the resource is in use.
+     */
     @Override
-    public synchronized <T> T open(ResourceKey<T> key) {
+    public <T> ResourceLease<T> acquire(ResourceKey<T> key) {
+        if (isParentKey(key)) {
+            return parent.acquire(key);
+        }
         Entry<T> entry = getEntry(key);
-        if (entry.resource != null) {
-            return entry.resource;
+        ResourceLease<T> lease = null;
+        while (lease == null) {
+            openResource(entry);
+            lease = tryLease(entry);
         }
-        for (ResourceKey<?> dependency : entry.dependecies) {
-            open(dependency);
+        return lease;
+    }
+
+    private <T> ResourceLease<T> tryLease(Entry<T> entry) {
+        if (readState.get() >= READ_REFRESHING_UNIT) {
+            ResourceLease<T> stagedLease = tryLeaseStaged(entry);
+            if (stagedLease != null) {
+                return stagedLease;
+            }
+        }
+        Generation generation = entry.generation;
+        if (generation.tryAcquire()) {
+            T resource = entry.resource();
+            if (resource != null && entry.generation == generation) {
+                return new Lease<>(entry.key, resource, generation);
+            }
+            release(generation);
         }
-        return entry.get();
+        return tryLeaseSlowly(entry);
     }
 
-    @Override
-    public synchronized void close(ResourceKey<?> key) {
-        close(key, false);
+    /**
+     * Leases the new instance staged by a refresh running on the current thread, if any
+     */
+    private <T> ResourceLease<T> tryLeaseStaged(Entry<T> entry) {
+        Map<Entry<?>, Object> staged = stagedResources.get();
+        if (staged == null || !staged.containsKey(entry)) {
+            return null;
+        }
+        Generation generation = entry.stagedGeneration;
+        generation.tryAcquire();
+        return new Lease<>(entry.key, CastUtil.cast(staged.get(entry)), generation);
+    }
+
+    private synchronized <T> ResourceLease<T> tryLeaseSlowly(Entry<T> entry) {
+        while (entry.transition != null && !entry.transition.refreshing) {
+            try {
+                awaitTransition(entry);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new OpeningFailedException(entry.key, e);
+            } catch (TimeoutException e) {
+                throw new OpeningFailedException(entry.key, e);
+            }
+        }
+        if (publishedEntries.get(entry.key) != entry) {
+            throw new NoSuchElementException(String.format("Key not found: %s", entry.key));
+        }
+        T resource = entry.resource();
+        Generation generation = entry.generation;
+        if (resource == null || !generation.tryAcquire()) {
+            return null;
+        }
+        return new Lease<>(entry.key, resource, generation);
+    }
+
+    private void release(Generation generation) {
+        if (generation.release()) {
+            synchronized (this) {
+                notifyAll();
+            }
+            generation.runDrainedAction();
+        }
     }
 
     @Override
-    public synchronized void close(ResourceKey<?> key, boolean aggressive) {
-        List<ClosingFailedException> exceptions = new ArrayList<>();
-        for (ResourceKey<?> dependant : getDependants(key)) {
+    public <T> T open(ResourceKey<T> key) {
+        if (isParentKey(key)) {
+            return parent.open(key);
+        }
+        return openResource(getEntry(key));
+    }
+
+    private <T> T openResource(Entry<T> entry) {
+        T resource = currentResource(entry);
+        if (resource != null) {
+            return resource;
+        }
+
+        Object result = RETRY;
+        while (result == RETRY) {
+            List<Entry<?>> closedDependencies = collectClosedDependencies(entry);
+            if (openBudget != Long.MAX_VALUE) {
+                makeRoom(entry, closedDependencies);
+            }
+            for (Entry<?> dependencyEntry : closedDependencies) {
+                openEntry(dependencyEntry);
+            }
+            result = openEntry(entry);
+        }
+        return CastUtil.cast(result);
+    }
+
+    private synchronized List<Entry<?>> collectClosedDependencies(Entry<?> entry) {
+        if (frozenTopology != null) {
+            return frozenTopology.collectClosedDependencies(entry);
+        }
+
+        List<Entry<?>> result = new ArrayList<>();
+        for (ResourceKey<?> dependency : graph.collectDependencies(entry.key, k -> getEntry(k).resource() == null)) {
+            result.add(getEntry(dependency));
+        }
+        return result;
+    }
+
+    /**
+     * Closes least recently used resources until the given entry
+     * and its closed dependencies fit into the budget.
+     *
+     * The resources are selected with holding the manager lock,
+     * but closed without it.
+     */
+    private void makeRoom(Entry<?> entry, List<Entry<?>> closedDependencies) {
+        List<Entry<?>> victims = beginClosingLeastRecentlyUsed(entry, closedDependencies);
+        for (int i = 0; i < victims.size(); i++) {
+            Entry<?> victim = victims.get(i);
+            boolean closed = false;
             try {
-                close(dependant, aggressive);
+                victim.closeResource();
+                closed = true;
             } catch (ClosingFailedException e) {
-                 addOrThrow(exceptions, e, aggressive);
+                // the budget is a soft limit, and the dependencies of the victim must stay open
+                for (int j = i + 1; j < victims.size(); j++) {
+                    finishClosing(victims.get(j), false);
+                }
+                return;
+            } finally {
+                finishClosing(victim, closed);
             }
         }
-        try {
-            getEntry(key).close();
-        } catch (ClosingFailedException e) {
-            addOrThrow(exceptions, e, aggressive);
+    }
+
+    /**
+     * Selects least recently used resources to close, and marks them as closing
+     *
+     * @return The selected entries, dependants before their dependencies
+     */
+    private synchronized List<Entry<?>> beginClosingLeastRecentlyUsed(
+            Entry<?> entry, List<Entry<?>> closedDependencies) {
+        
+        long requiredWeight = entry.weight;
+        for (Entry<?> dependencyEntry : closedDependencies) {
+            requiredWeight += dependencyEntry.weight;
+        }
+        expungeReclaimed();
+        if (openWeight + requiredWeight <= openBudget) {
+            return Collections.emptyList();
+        }
+
+        Set<Entry<?>> protectedEntries = new HashSet<>(collectDependencies(entry));
+        protectedEntries.add(entry);
+        Map<Entry<?>, Integer> activeDependantCounts = countActiveDependants();
+        long now = System.nanoTime();
+        List<Entry<?>> candidates = new ArrayList<>();
+        for (int id = openIds.nextSetBit(0); id >= 0; id = openIds.nextSetBit(id + 1)) {
+            Entry<?> candidate = entriesById[id];
+            if (!protectedEntries.contains(candidate) && isClosable(candidate)) {
+                updateAccess(candidate, now);
+                candidates.add(candidate);
+            }
+        }
+        candidates.sort((entry1, entry2) -> Long.compare(entry1.lastAccessNanos, entry2.lastAccessNanos));
+
+        List<Entry<?>> victims = new ArrayList<>();
+        long freedWeight = 0L;
+        boolean selectedAny = true;
+        while (selectedAny && openWeight - freedWeight + requiredWeight > openBudget) {
+            selectedAny = false;
+            Iterator<Entry<?>> iterator = candidates.iterator();
+            while (iterator.hasNext() && openWeight - freedWeight + requiredWeight > openBudget) {
+                Entry<?> candidate = iterator.next();
+                if (activeDependantCounts.getOrDefault(candidate, 0) == 0) {
+                    iterator.remove();
+                    if (candidate.generation.tryBeginClosing()) {
+                        candidate.transition = new Transition(candidate.key, Thread.currentThread(), false);
+                        victims.add(candidate);
+                        freedWeight += candidate.openWeight;
+                        forEachDependency(
+                                candidate, dependency -> activeDependantCounts.merge(dependency, -1, Integer::sum));
+                        selectedAny = true;
+                    }
+                }
+            }
+        }
+        return victims;
+    }
+
+    /**
+     * Counts the open or opening direct dependants of the entries which have any
+     */
+    private Map<Entry<?>, Integer> countActiveDependants() {
+        Map<Entry<?>, Integer> result = new HashMap<>();
+        for (Entry<?> entry : entries.values()) {
+            if (entry.resource() != null || (entry.transition != null && entry.transition.opening)) {
+                forEachDependency(entry, dependency -> result.merge(dependency, 1, Integer::sum));
+            }
+        }
+        return result;
+    }
+
+    private void forEachDependency(Entry<?> entry, Consumer<Entry<?>> action) {
+        for (ResourceKey<?> dependency : entry.dependecies) {
+            Entry<?> dependencyEntry = publishedEntries.get(dependency);
+            if (dependencyEntry != null) {
+                action.accept(dependencyEntry);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The resource is opened on the async executor, with a deadline bound to the opening thread,
+     * and the calling thread waits no longer than the deadline, even if a factory blocks.
+     * The deadline carries through the opening of the dependencies,
+     * and through nested openings called by the factories,
+     * including ones in parent managers.
+     * Nested openings with a timeout run on the opening thread, and can only shorten the deadline.
+     * Waiting for a concurrent opening or closing fails when the deadline expires,
+     * and so does opening of any further resource.
+     * After the timeout, the opening goes on in the background until its next deadline check:
+     * a running factory is not interrupted, but it can adapt its own timeouts via {@link #remainingOpenTime()}.
+     */
+    @Override
+    public <T> T open(ResourceKey<T> key, Duration timeout) {
+        T resource = get(key);
+        if (resource != null) {
+            return resource;
+        }
+
+        Long outerDeadline = OPEN_DEADLINES.get();
+        long deadline = System.nanoTime() + timeout.toNanos();
+        if (outerDeadline != null) {
+            return openWithDeadline(key, outerDeadline - deadline < 0L ? outerDeadline : deadline);
+        }
+
+        CompletableFuture<T> future;
+        try {
+            future = CompletableFuture.supplyAsync(() -> openWithDeadline(key, deadline), asyncExecutor);
+        } catch (RejectedExecutionException e) {
+            throw new OpeningFailedException(key, e);
+        }
+        try {
+            return future.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            throw new OpeningFailedException(key, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OpeningFailedException(key, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new OpeningFailedException(key, e);
+        }
+    }
+
+    private <T> T openWithDeadline(ResourceKey<T> key, long deadline) {
+        Long outerDeadline = OPEN_DEADLINES.get();
+        OPEN_DEADLINES.set(deadline);
+        try {
+            return open(key);
+        } finally {
+            if (outerDeadline != null) {
+                OPEN_DEADLINES.set(outerDeadline);
+            } else {
+                OPEN_DEADLINES.remove();
+            }
+        }
+    }
+
+    /**
+     * Gets the time remaining until the open deadline of the current thread
+     * (see {@link #open(ResourceKey, Duration)}).
+     *
+     * Factories can use this to limit their blocking operations.
+     *
+     * @return The remaining time (may be negative), or <code>null</code> if there is no deadline
+     */
+    public static Duration remainingOpenTime() {
+        Long deadline = OPEN_DEADLINES.get();
+        return deadline != null ? Duration.ofNanos(deadline - System.nanoTime()) : null;
+    }
+
+    private static void checkOpenDeadline(ResourceKey<?> key) {
+        Long deadline = OPEN_DEADLINES.get();
+        if (deadline != null && deadline - System.nanoTime() <= 0L) {
+            throw new OpeningFailedException(key, new TimeoutException("Open deadline expired"));
+        }
+    }
+
+    @Override
+    public <T> T open(ResourceKey<T> key, Executor executor) {
+        CompletableFuture<T> future = openInParallel(key, executor);
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public <T> CompletableFuture<T> openAsync(ResourceKey<T> key) {
+        return openAsync(key, asyncExecutor);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * An open resource is returned lock-free,
+     * otherwise the dependencies are collected and scheduled on the executor, too,
+     * so the calling thread never waits for the manager lock.
+     */
+    @Override
+    public <T> CompletableFuture<T> openAsync(ResourceKey<T> key, Executor executor) {
+        T resource = get(key);
+        if (resource != null) {
+            return CompletableFuture.completedFuture(resource);
+        }
+        try {
+            return CompletableFuture
+                    .supplyAsync(() -> openInParallel(key, executor), executor)
+                    .thenCompose(future -> future);
+        } catch (RuntimeException e) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    /**
+     * Schedules opening of the closed part of the dependency closure of the given key.
+     *
+     * Each resource will be opened on the executor as soon as all of its dependencies are open.
+     */
+    private <T> CompletableFuture<T> openInParallel(ResourceKey<T> key, Executor executor) {
+        if (isParentKey(key)) {
+            return parent.openInParallel(key, executor);
+        }
+        Entry<T> entry = getEntry(key);
+        T resource = currentResource(entry);
+        if (resource != null) {
+            return CompletableFuture.completedFuture(resource);
+        }
+        
+        List<Entry<?>> closedEntries = collectClosedDependencies(entry);
+        closedEntries.add(entry);
+        Map<ResourceKey<?>, CompletableFuture<?>> futures = new HashMap<>();
+        CompletableFuture<?> future = null;
+        for (Entry<?> closedEntry : closedEntries) {
+            future = scheduleOpening(closedEntry, executor, futures);
+            futures.put(closedEntry.key, future);
+        }
+        return CastUtil.cast(future);
+    }
+
+    private CompletableFuture<?> scheduleOpening(
+            Entry<?> entry, Executor executor, Map<ResourceKey<?>, CompletableFuture<?>> futures) {
+        
+        List<CompletableFuture<?>> dependencyFutures = new ArrayList<>();
+        for (ResourceKey<?> dependency : entry.dependecies) {
+            CompletableFuture<?> dependencyFuture = futures.get(dependency);
+            if (dependencyFuture != null) {
+                dependencyFutures.add(dependencyFuture);
+            }
+        }
+        return CompletableFuture
+                .allOf(dependencyFutures.toArray(new CompletableFuture<?>[dependencyFutures.size()]))
+                .thenApplyAsync(v -> open(entry.key), executor);
+    }
+
+    /**
+     * Opens the given entry, or waits for a concurrent opening of it.
+     *
+     * The factory is called without holding the manager lock.
+     *
+     * @return The open resource, or {@link #RETRY} if a dependency was closed in the meantime
+     */
+    private Object openEntry(Entry<?> entry) {
+        checkOpenDeadline(entry.key);
+        Transition transition = beginOpening(entry);
+        if (transition == null) {
+            Object resource = entry.resource();
+            return resource != null ? resource : RETRY;
+        }
+        return createAndPublish(entry, transition);
+    }
+
+    private <T> Object createAndPublish(Entry<T> entry, Transition transition) {
+
+        T resource = null;
+        List<ResourceLease<?>> parentLeases = Collections.emptyList();
+        boolean published = false;
+        try {
+            parentLeases = acquireParentLeases(entry);
+            resource = checkCreated(entry.factory.create(this, entry.key));
+        } catch (Exception e) {
+            transition.failure = new OpeningFailedException(entry.key, e);
+        } finally {
+            published = finishOpening(entry, transition, resource, parentLeases);
+        }
+        if (transition.failure != null) {
+            throw transition.failure;
+        }
+        if (!published) {
+            discardResource(entry, resource, parentLeases);
+            return RETRY;
+        }
+        return resource;
+    }
+
+    private static <T> T checkCreated(T resource) {
+        if (resource == null) {
+            throw new IllegalStateException("Factory returned null");
+        }
+        return resource;
+    }
+
+    private synchronized Transition beginOpening(Entry<?> entry) {
+        Entry<?> transitingEntry;
+        while ((transitingEntry = findOpeningBlocker(entry)) != null) {
+            Transition runningTransition = transitingEntry.transition;
+            try {
+                awaitTransition(transitingEntry);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new OpeningFailedException(entry.key, e);
+            } catch (TimeoutException e) {
+                throw new OpeningFailedException(entry.key, e);
+            }
+            if (transitingEntry == entry && runningTransition.opening && runningTransition.failure != null) {
+                throw runningTransition.failure;
+            }
+        }
+        if (publishedEntries.get(entry.key) != entry) {
+            throw new NoSuchElementException(String.format("Key not found: %s", entry.key));
+        }
+        if (entry.resource() != null || !areDependenciesOpen(entry)) {
+            return null;
+        }
+        Transition transition = new Transition(entry.key, Thread.currentThread(), true);
+        entry.transition = transition;
+        updatePins(entry);
+        return transition;
+    }
+
+    /**
+     * Finds the entry itself if it is in transition, or a dependency being closed
+     */
+    private Entry<?> findOpeningBlocker(Entry<?> entry) {
+        if (entry.transition != null) {
+            return entry;
+        }
+        if (frozenTopology != null) {
+            return frozenTopology.findClosingDependency(entry);
+        }
+
+        for (ResourceKey<?> dependency : entry.dependecies) {
+            Entry<?> dependencyEntry = publishedEntries.get(dependency);
+            if (dependencyEntry != null && dependencyEntry.transition != null && !dependencyEntry.transition.opening) {
+                return dependencyEntry;
+            }
+        }
+        return null;
+    }
+
+    private boolean areDependenciesOpen(Entry<?> entry) {
+        if (frozenTopology != null) {
+            return frozenTopology.areDependenciesOpen(entry);
+        }
+
+        for (ResourceKey<?> dependency : entry.dependecies) {
+            if (getEntry(dependency).resource() == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Publishes the created resource, unless the opening failed
+     * or the parent began to close a leased dependency in the meantime.
+     *
+     * @return <code>true</code> if the resource was published
+     */
+    private synchronized <T> boolean finishOpening(
+            Entry<T> entry, Transition transition, T resource, List<ResourceLease<?>> parentLeases) {
+        
+        boolean published = transition.failure == null && !isAnyClosing(parentLeases);
+        if (published) {
+            if (!parentLeases.isEmpty()) {
+                entry.parentLeases = parentLeases;
+                updateLeasingEntryCount(1);
+            }
+            entry.setResource(resource);
+        } else if (transition.failure != null) {
+            releaseAll(parentLeases);
+        }
+        entry.transition = null;
+        if (!published) {
+            updatePins(entry);
+        }
+        notifyAll();
+        return published;
+    }
+
+    private boolean isAnyClosing(List<ResourceLease<?>> leases) {
+        for (ResourceLease<?> lease : leases) {
+            if (lease instanceof Lease && ((Lease<?>) lease).generation.isClosing()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Closes a created resource which was not published, then releases its parent leases
+     */
+    private <T> void discardResource(Entry<T> entry, T resource, List<ResourceLease<?>> parentLeases) {
+        try {
+            new RetiredResource<>(entry, resource, null).close();
+        } catch (ClosingFailedException e) {
+            throw new OpeningFailedException(entry.key, e);
+        } finally {
+            releaseAll(parentLeases);
+        }
+    }
+
+    private boolean isParentKey(ResourceKey<?> key) {
+        return parent != null && !publishedEntries.containsKey(key) && parent.containsKey(key);
+    }
+
+    /**
+     * Leases the dependencies of the entry which are resolved from the parent
+     */
+    private List<ResourceLease<?>> acquireParentLeases(Entry<?> entry) {
+        if (entry.parentDependencies.length == 0) {
+            return Collections.emptyList();
+        }
+
+        List<ResourceLease<?>> parentLeases = new ArrayList<>(entry.parentDependencies.length);
+        try {
+            for (ResourceKey<?> parentDependency : entry.parentDependencies) {
+                parentLeases.add(parent.acquire(parentDependency));
+            }
+        } catch (RuntimeException e) {
+            releaseAll(parentLeases);
+            throw e;
+        }
+        return parentLeases;
+    }
+
+    /**
+     * Registers this manager at its ancestors while any of its entries holds parent leases
+     */
+    private void updateLeasingEntryCount(int delta) {
+        boolean wasLeasing = leasingEntryCount > 0;
+        leasingEntryCount += delta;
+        boolean leasing = leasingEntryCount > 0;
+        if (leasing == wasLeasing) {
+            return;
+        }
+        for (DefaultResourceManager ancestor = parent; ancestor != null; ancestor = ancestor.parent) {
+            if (leasing) {
+                ancestor.leasingChildren.add(this);
+            } else {
+                ancestor.leasingChildren.remove(this);
+            }
+        }
+    }
+
+    private void releaseAll(List<ResourceLease<?>> leases) {
+        for (ResourceLease<?> lease : leases) {
+            lease.close();
+        }
+    }
+
+    /**
+     * Waits until the running transition of the given entry finishes.
+     *
+     * Must be called with holding the manager lock.
+     * Waits no longer than the open deadline of the current thread, if any.
+     *
+     * @throws CyclicDependencyException if waiting would cause a deadlock
+     * @throws TimeoutException if the open deadline expired
+     */
+    private void awaitTransition(Entry<?> entry) throws InterruptedException, TimeoutException {
+        Transition transition = entry.transition;
+        Thread currentThread = Thread.currentThread();
+        checkDeadlock(transition, currentThread);
+        Long deadline = OPEN_DEADLINES.get();
+        waitingThreads.put(currentThread, transition);
+        try {
+            while (entry.transition == transition) {
+                if (deadline == null) {
+                    wait();
+                } else {
+                    long remainingNanos = deadline - System.nanoTime();
+                    if (remainingNanos <= 0L) {
+                        throw new TimeoutException(String.format("Waiting for %s timed out", transition.key));
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+                }
+            }
+        } finally {
+            waitingThreads.remove(currentThread);
+        }
+    }
+
+    private void checkDeadlock(Transition transition, Thread currentThread) {
+        List<ResourceKey<?>> waitedKeys = new ArrayList<>();
+        Transition nextTransition = transition;
+        while (nextTransition != null) {
+            waitedKeys.add(nextTransition.key);
+            if (nextTransition.owner == currentThread) {
+                throw new CyclicDependencyException(
+                        String.format("Deadlock detected: %s", waitedKeys));
+            }
+            nextTransition = waitingThreads.get(nextTransition.owner);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * New instances of the resource and its open dependants are created
+     * while the old ones are still in use.
+     * Factories of the dependants get the new instances of their dependencies.
+     * The new instances are swapped in at once,
+     * and the old ones are closed when their leases are released.
+     * If the drain timeout expires, the old instances are closed later,
+     * by the thread releasing their last lease.
+     * If creating of any new instance fails, the old ones remain in use.
+     *
+     * @throws OpeningFailedException if creating of any new instance failed
+     * @throws ClosingFailedException if closing of any old instance failed, or the drain timeout expired
+     */
+    @Override
+    public void refresh(ResourceKey<?> key) {
+        List<Entry<?>> affectedEntries = beginRefreshing(getEntry(key));
+        if (affectedEntries.isEmpty()) {
+            return;
+        }
+
+        Map<Entry<?>, Object> newResources;
+        try {
+            newResources = createNewGeneration(affectedEntries);
+        } catch (RuntimeException e) {
+            finishRefreshing(affectedEntries, Collections.emptyMap());
+            throw e;
+        }
+        List<RetiredResource<?>> retiredResources = finishRefreshing(affectedEntries, newResources);
+        closeRetiredResources(retiredResources);
+    }
+
+    /**
+     * Marks the open entry and all of its dependants as refreshing
+     *
+     * @return The marked entries in topological order, or an empty list if the entry is not open
+     */
+    private synchronized List<Entry<?>> beginRefreshing(Entry<?> entry) {
+        awaitTransitions(entry);
+        if (entry.resource() == null) {
+            return Collections.emptyList();
+        }
+
+        List<Entry<?>> affectedEntries = collectDependants(entry);
+        affectedEntries.add(0, entry);
+        Thread currentThread = Thread.currentThread();
+        for (Entry<?> affectedEntry : affectedEntries) {
+            affectedEntry.transition = new Transition(affectedEntry.key, currentThread, false, true);
+        }
+        return affectedEntries;
+    }
+
+    private Map<Entry<?>, Object> createNewGeneration(List<Entry<?>> affectedEntries) {
+        Map<Entry<?>, Object> newResources = new IdentityHashMap<>();
+        Map<Entry<?>, Object> previouslyStaged = stagedResources.get();
+        stagedResources.set(newResources);
+        readState.addAndGet(READ_REFRESHING_UNIT);
+        try {
+            for (Entry<?> entry : affectedEntries) {
+                if (entry.resource() != null) {
+                    Object newResource = createResource(entry);
+                    entry.stagedGeneration = new Generation();
+                    newResources.put(entry, newResource);
+                }
+            }
+        } catch (OpeningFailedException e) {
+            closeNewGeneration(affectedEntries, newResources, e);
+            throw e;
+        } finally {
+            readState.addAndGet(-READ_REFRESHING_UNIT);
+            if (previouslyStaged != null) {
+                stagedResources.set(previouslyStaged);
+            } else {
+                stagedResources.remove();
+            }
+        }
+        return newResources;
+    }
+
+    private <T> T createResource(Entry<T> entry) {
+        try {
+            return checkCreated(entry.factory.create(this, entry.key));
+        } catch (Exception e) {
+            throw new OpeningFailedException(entry.key, e);
+        }
+    }
+
+    private void closeNewGeneration(
+            List<Entry<?>> affectedEntries, Map<Entry<?>, Object> newResources, RuntimeException failure) {
+        
+        for (int i = affectedEntries.size() - 1; i >= 0; i--) {
+            Entry<?> entry = affectedEntries.get(i);
+            if (newResources.containsKey(entry)) {
+                try {
+                    new RetiredResource<>(entry, newResources.get(entry), null).close();
+                } catch (ClosingFailedException e) {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+    }
+
+    private synchronized List<RetiredResource<?>> finishRefreshing(
+            List<Entry<?>> affectedEntries, Map<Entry<?>, Object> newResources) {
+        
+        List<RetiredResource<?>> retiredResources = new ArrayList<>();
+        for (Entry<?> entry : affectedEntries) {
+            if (newResources.containsKey(entry)) {
+                retiredResources.add(entry.swap(newResources.get(entry)));
+            }
+            entry.stagedGeneration = null;
+            entry.transition = null;
+        }
+        notifyAll();
+        return retiredResources;
+    }
+
+    private void closeRetiredResources(List<RetiredResource<?>> retiredResources) {
+        try {
+            drainRetiredLeases(retiredResources);
+        } catch (ClosingFailedException e) {
+            closeRetiredResourcesWhenDrained(retiredResources, e);
+            throw e;
+        }
+        closeRetiredResourcesNow(retiredResources);
+    }
+
+    private void closeRetiredResourcesNow(List<RetiredResource<?>> retiredResources) {
+        List<ClosingFailedException> exceptions = new ArrayList<>();
+        for (int i = retiredResources.size() - 1; i >= 0; i--) {
+            try {
+                retiredResources.get(i).close();
+            } catch (ClosingFailedException e) {
+                exceptions.add(e);
+            }
+        }
+        throwIfAny(exceptions);
+    }
+
+    /**
+     * Closes the retired resources when the last lease of all of them was released
+     */
+    private void closeRetiredResourcesWhenDrained(
+            List<RetiredResource<?>> retiredResources, ClosingFailedException drainFailure) {
+        
+        AtomicInteger pendingCount = new AtomicInteger(retiredResources.size());
+        Runnable closeIfLast = () -> {
+            if (pendingCount.decrementAndGet() == 0) {
+                closeRetiredResourcesNow(retiredResources);
+            }
+        };
+        try {
+            for (RetiredResource<?> retiredResource : retiredResources) {
+                retiredResource.generation.whenDrained(closeIfLast);
+            }
+        } catch (ClosingFailedException e) {
+            drainFailure.addSuppressed(e);
+        }
+    }
+
+    private synchronized void drainRetiredLeases(List<RetiredResource<?>> retiredResources) {
+        Set<ResourceKey<?>> leasedKeys = new HashSet<>();
+        for (RetiredResource<?> retiredResource : retiredResources) {
+            if (retiredResource.generation.leaseCount() > 0) {
+                leasedKeys.add(retiredResource.entry.key);
+            }
+        }
+        List<CompletableFuture<Void>> childClosings = closeChildDependants(leasedKeys);
+        try {
+            long deadline = System.nanoTime() + drainTimeout.toNanos();
+            for (RetiredResource<?> retiredResource : retiredResources) {
+                while (retiredResource.generation.leaseCount() > 0) {
+                    awaitLeases(retiredResource.entry.key, retiredResource.generation, deadline);
+                }
+            }
+        } catch (ClosingFailedException e) {
+            addChildFailures(e, childClosings);
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized void close(ResourceKey<?> key) {
+        close(key, false);
+    }
+
+    @Override
+    public synchronized void close(ResourceKey<?> key, boolean aggressive) {
+        Entry<?> entry = getEntry(key);
+        awaitTransitions(entry);
+        List<Entry<?>> entriesToClose = collectDependants(entry);
+        entriesToClose.add(0, entry);
+        try {
+            drainLeases(entriesToClose);
+            closeInReverseOrder(entriesToClose, aggressive);
+        } finally {
+            cancelClosing(entriesToClose);
+        }
+    }
+
+    /**
+     * Waits for all leases of the given entries to be released.
+     *
+     * Must be called with holding the manager lock.
+     * No new leases will be given until the entries are closed,
+     * or closing is cancelled via {@link #cancelClosing(List)}.
+     * While waiting, the entries are marked as closing,
+     * so no dependants will be opened.
+     *
+     * @throws ClosingFailedException if the drain timeout expired or the thread was interrupted
+     */
+    private void drainLeases(List<Entry<?>> entriesToDrain) {
+        for (Entry<?> entry : entriesToDrain) {
+            entry.generation.beginClosing();
+        }
+        if (findLeasedEntry(entriesToDrain) == null) {
+            return;
+        }
+
+        Thread currentThread = Thread.currentThread();
+        Set<ResourceKey<?>> leasedKeys = new HashSet<>();
+        for (Entry<?> entry : entriesToDrain) {
+            entry.transition = new Transition(entry.key, currentThread, false);
+            if (entry.generation.leaseCount() > 0) {
+                leasedKeys.add(entry.key);
+            }
+        }
+        List<CompletableFuture<Void>> childClosings = closeChildDependants(leasedKeys);
+        try {
+            long deadline = System.nanoTime() + drainTimeout.toNanos();
+            Entry<?> leasedEntry;
+            while ((leasedEntry = findLeasedEntry(entriesToDrain)) != null) {
+                awaitLeases(leasedEntry.key, leasedEntry.generation, deadline);
+            }
+        } catch (ClosingFailedException e) {
+            addChildFailures(e, childClosings);
+            throw e;
+        } finally {
+            for (Entry<?> entry : entriesToDrain) {
+                entry.transition = null;
+            }
+            notifyAll();
+        }
+    }
+
+    private synchronized void drainLeases(Entry<?> entry) {
+        entry.generation.beginClosing();
+        if (entry.generation.leaseCount() == 0) {
+            return;
+        }
+
+        List<CompletableFuture<Void>> childClosings = closeChildDependants(Collections.singleton(entry.key));
+        try {
+            long deadline = System.nanoTime() + drainTimeout.toNanos();
+            while (entry.generation.leaseCount() > 0) {
+                awaitLeases(entry.key, entry.generation, deadline);
+            }
+        } catch (ClosingFailedException e) {
+            addChildFailures(e, childClosings);
+            throw e;
+        }
+    }
+
+    /**
+     * Asks the leasing children to close their open resources which depend on the given keys.
+     *
+     * The children close them asynchronously, without the lock of this manager,
+     * and the drained leases notify the waiting thread.
+     */
+    private List<CompletableFuture<Void>> closeChildDependants(Set<ResourceKey<?>> leasedKeys) {
+        if (leasedKeys.isEmpty() || leasingChildren.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<DefaultResourceManager> children;
+        synchronized (leasingChildren) {
+            children = new ArrayList<>(leasingChildren);
+        }
+        List<CompletableFuture<Void>> childClosings = new ArrayList<>(children.size());
+        for (DefaultResourceManager child : children) {
+            try {
+                childClosings.add(CompletableFuture.runAsync(
+                        () -> child.closeParentDependants(leasedKeys), asyncExecutor));
+            } catch (RejectedExecutionException e) {
+                // the drain waits for the child as for any other lease holder
+            }
+        }
+        return childClosings;
+    }
+
+    private void addChildFailures(ClosingFailedException drainFailure, List<CompletableFuture<Void>> childClosings) {
+        for (CompletableFuture<Void> childClosing : childClosings) {
+            if (childClosing.isCompletedExceptionally()) {
+                childClosing.exceptionally(e -> {
+                    drainFailure.addSuppressed(e instanceof CompletionException ? e.getCause() : e);
+                    return null;
+                });
+            }
+        }
+    }
+
+    /**
+     * Closes the open entries which depend on any of the given keys of the parent, with their dependants.
+     *
+     * Entries being opened are skipped, they do not publish a resource created with a closing dependency.
+     * The keys may belong to any ancestor, descendants leasing them are registered there, too.
+     *
+     * @throws ClosingFailedException if closing of any resource failed
+     */
+    private void closeParentDependants(Set<ResourceKey<?>> parentKeys) {
+        List<ClosingFailedException> exceptions = new ArrayList<>();
+        for (ResourceKey<?> key : findParentDependants(parentKeys)) {
+            try {
+                close(key, true);
+            } catch (ClosingFailedException e) {
+                exceptions.add(e);
+            } catch (NoSuchElementException e) {
+                // removed in the meantime
+            }
+        }
+        throwIfAny(exceptions);
+    }
+
+    private synchronized List<ResourceKey<?>> findParentDependants(Set<ResourceKey<?>> parentKeys) {
+        List<ResourceKey<?>> result = new ArrayList<>();
+        for (Entry<?> entry : entries.values()) {
+            if (entry.transition == null && entry.resource() != null && dependsOnAny(entry, parentKeys)) {
+                result.add(entry.key);
+            }
+        }
+        return result;
+    }
+
+    private static boolean dependsOnAny(Entry<?> entry, Set<ResourceKey<?>> parentKeys) {
+        for (ResourceKey<?> parentDependency : entry.parentDependencies) {
+            if (parentKeys.contains(parentDependency)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Allows leasing again of the entries which were not closed
+     */
+    private void cancelClosing(List<Entry<?>> entriesToCancel) {
+        for (Entry<?> entry : entriesToCancel) {
+            entry.generation.cancelClosing();
+        }
+    }
+
+    private void awaitLeases(ResourceKey<?> key, Generation generation, long deadline) {
+        long remainingNanos = deadline - System.nanoTime();
+        if (remainingNanos <= 0L) {
+            throw new ClosingFailedException(key, new TimeoutException(String.format(
+                    "Lease drain timed out, %d lease(s) still held", generation.leaseCount())));
+        }
+        try {
+            TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ClosingFailedException(key, e);
+        }
+    }
+
+    private Entry<?> findLeasedEntry(List<Entry<?>> entriesToCheck) {
+        for (Entry<?> entry : entriesToCheck) {
+            if (entry.generation.leaseCount() > 0) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Collects entries of transitive dependencies
+     */
+    private List<Entry<?>> collectDependencies(Entry<?> entry) {
+        if (frozenTopology != null) {
+            return frozenTopology.collectDependencies(entry);
+        }
+
+        List<Entry<?>> result = new ArrayList<>();
+        for (ResourceKey<?> dependency : graph.collectDependencies(entry.key, k -> true)) {
+            result.add(getEntry(dependency));
+        }
+        return result;
+    }
+
+    /**
+     * Collects entries of transitive dependants in topological order
+     */
+    private List<Entry<?>> collectDependants(Entry<?> entry) {
+        if (frozenTopology != null) {
+            return frozenTopology.collectDependants(entry);
+        }
+
+        List<Entry<?>> result = new ArrayList<>();
+        for (ResourceKey<?> dependant : graph.collectDependants(entry.key)) {
+            result.add(getEntry(dependant));
+        }
+        return result;
+    }
+
+    /**
+     * Collects all the entries in topological order
+     */
+    private List<Entry<?>> entriesInOrder() {
+        if (frozenTopology != null) {
+            return Arrays.asList(frozenTopology.entriesInOrder);
+        }
+
+        List<Entry<?>> result = new ArrayList<>(entries.size());
+        for (ResourceKey<?> key : graph.keysInOrder()) {
+            Entry<?> entry = publishedEntries.get(key);
+            if (entry != null) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    private void closeInReverseOrder(List<Entry<?>> entriesInOrder, boolean aggressive) {
+        List<ClosingFailedException> exceptions = new ArrayList<>();
+        for (int i = entriesInOrder.size() - 1; i >= 0; i--) {
+            Entry<?> entry = entriesInOrder.get(i);
+            try {
+                entry.close();
+            } catch (ClosingFailedException e) {
+                addOrThrow(exceptions, e, aggressive);
+            }
+        }
+        throwIfAny(exceptions);
+    }
+
+    @Override
+    public synchronized void closeAll() {
+        closeAll(false);
+    }
+
+    @Override
+    public synchronized void closeAll(boolean aggressive) {
+        awaitAllTransitions();
+        List<Entry<?>> entriesInOrder = entriesInOrder();
+        try {
+            drainLeases(entriesInOrder);
+            closeInReverseOrder(entriesInOrder, aggressive);
+        } finally {
+            cancelClosing(entriesInOrder);
+        }
+    }
+
+    /**
+     * Closes the resources which were not accessed within their idle timeout.
+     *
+     * Resources are checked in reverse topological order.
+     * A resource is kept open while it has an open dependant,
+     * is leased or is in transition.
+     * Dependants evicted by the same run do not keep their dependencies open.
+     * Access tracking is approximate: an access is noticed at the next run,
+     * so a resource may be kept open for up to one more interval.
+     *
+     * @throws ClosingFailedException if any of the evicted resources failed to close
+     */
+    public synchronized void evictIdle() {
+        expungeReclaimed();
+        long now = System.nanoTime();
+        List<Entry<?>> entriesInOrder = entriesInOrder();
+        List<ClosingFailedException> exceptions = new ArrayList<>();
+        for (int i = entriesInOrder.size() - 1; i >= 0; i--) {
+            Entry<?> entry = entriesInOrder.get(i);
+            if (isEvictable(entry, now) && entry.generation.tryBeginClosing()) {
+                try {
+                    entry.close();
+                } catch (ClosingFailedException e) {
+                    exceptions.add(e);
+                } finally {
+                    entry.generation.cancelClosing();
+                }
+            }
+        }
+        throwIfAny(exceptions);
+    }
+
+    private boolean isEvictable(Entry<?> entry, long now) {
+        if (entry.idleTimeoutNanos <= 0L || entry.resource() == null || !isClosable(entry)) {
+            return false;
+        }
+        updateAccess(entry, now);
+        return now - entry.lastAccessNanos >= entry.idleTimeoutNanos && !hasOpenDependant(entry);
+    }
+
+    private boolean isClosable(Entry<?> entry) {
+        return entry.transition == null && entry.generation.leaseCount() == 0;
+    }
+
+    /**
+     * Moves an access noticed since the last check to the access time
+     */
+    private void updateAccess(Entry<?> entry, long now) {
+        if (entry.accessed) {
+            entry.accessed = false;
+            entry.lastAccessNanos = now;
+        }
+    }
+
+    private boolean hasOpenDependant(Entry<?> entry) {
+        for (Entry<?> dependantEntry : collectDependants(entry)) {
+            if (dependantEntry.resource() != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasActiveDependant(Entry<?> entry) {
+        for (Entry<?> dependantEntry : collectDependants(entry)) {
+            if (dependantEntry.resource() != null ||
+                    (dependantEntry.transition != null && dependantEntry.transition.opening)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Updates how the reclaimable dependencies of the given entry are held
+     */
+    private void updatePins(Entry<?> entry) {
+        if (!anyReclaimable) {
+            return;
+        }
+        for (ResourceKey<?> dependency : entry.dependecies) {
+            Entry<?> dependencyEntry = publishedEntries.get(dependency);
+            if (dependencyEntry != null && dependencyEntry.reclaimable) {
+                holdResource(dependencyEntry);
+            }
+        }
+    }
+
+    /**
+     * Rearranges holding of the resource, or marks the entry as reclaimed if its reference was cleared
+     */
+    private <T> void holdResource(Entry<T> entry) {
+        T resource = entry.resource();
+        if (resource == null && entry.reclaimableResource != null) {
+            markReclaimed(entry);
+            return;
+        }
+        entry.holdResource(resource);
+    }
+
+    /**
+     * Marks the entries of the reclaimed resources as closed
+     */
+    private void expungeReclaimed() {
+        if (!anyReclaimable) {
+            return;
+        }
+        Reference<?> reference;
+        while ((reference = reclaimedReferences.poll()) != null) {
+            handleReclaimed((ReclaimableReference<?>) reference);
+        }
+    }
+
+    private synchronized void handleReclaimed(ReclaimableReference<?> reference) {
+        Entry<?> entry = reference.entry;
+        if (entry.reclaimableResource != reference || entry.resource != null) {
+            return;
+        }
+        markReclaimed(entry);
+    }
+
+    private void markReclaimed(Entry<?> entry) {
+        entry.reclaimableResource = null;
+        if (publishedEntries.get(entry.key) == entry) {
+            setReclaimed(entry, true);
+            updateOpenState(entry);
+        }
+    }
+
+    private void setReclaimed(Entry<?> entry, boolean reclaimed) {
+        if (entry.reclaimed != reclaimed) {
+            entry.reclaimed = reclaimed;
+            reclaimedCount += reclaimed ? 1 : -1; // NOSONAR modified only with holding the lock
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> closeAsync(ResourceKey<?> key) {
+        return closeAsync(key, asyncExecutor);
+    }
+
+    @Override
+    public CompletableFuture<Void> closeAllAsync() {
+        return closeAllAsync(asyncExecutor);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * A closer which timed out may still use the dependencies of its resource,
+     * so these dependencies are kept open, and reported as suppressed exceptions of the timeout.
+     * The timed out resource itself remains in closing transition until its closer returns,
+     * so further operations on it and on its dependencies wait until then.
+     */
+    @Override
+    public void closeAll(Executor executor, Duration timeout) {
+        List<List<Entry<?>>> waves = beginClosingAll();
+        List<ClosingFailedException> exceptions = new ArrayList<>();
+        Map<Entry<?>, ClosingFailedException> keptEntries = new IdentityHashMap<>();
+        for (List<Entry<?>> wave : waves) {
+            List<Entry<?>> closableEntries = new ArrayList<>(wave.size());
+            for (Entry<?> entry : wave) {
+                ClosingFailedException dependantTimeout = keptEntries.get(entry);
+                if (dependantTimeout != null) {
+                    finishClosing(entry, false);
+                    dependantTimeout.addSuppressed(new ClosingFailedException(entry.key, new IllegalStateException(
+                            "Kept open, a dependant is still being closed")));
+                } else {
+                    closableEntries.add(entry);
+                }
+            }
+            closeWave(closableEntries, executor, timeout, exceptions, keptEntries);
+        }
+        throwIfAny(exceptions);
+    }
+
+    /**
+     * Marks all open entries as closing, and groups them into waves.
+     *
+     * Each wave contains entries whose open dependants are all in previous waves.
+     */
+    private synchronized List<List<Entry<?>>> beginClosingAll() {
+        awaitAllTransitions();
+        List<List<Entry<?>>> waves = frozenTopology != null ?
+                frozenTopology.groupOpenIntoWaves() :
+                groupOpenIntoWaves();
+        for (List<Entry<?>> wave : waves) {
+            for (Entry<?> entry : wave) {
+                entry.transition = new Transition(entry.key, Thread.currentThread(), false);
+            }
+        }
+        return waves;
+    }
+
+    private List<List<Entry<?>>> groupOpenIntoWaves() {
+        List<ResourceKey<?>> keysInOrder = graph.keysInOrder();
+        Map<ResourceKey<?>, Integer> levels = new HashMap<>();
+        List<List<Entry<?>>> waves = new ArrayList<>();
+        for (int i = keysInOrder.size() - 1; i >= 0; i--) {
+            ResourceKey<?> key = keysInOrder.get(i);
+            Entry<?> entry = publishedEntries.get(key);
+            if (entry == null || entry.resource() == null) {
+                continue;
+            }
+
+            int level = levels.getOrDefault(key, 0);
+            addToWave(waves, level, entry);
+            for (ResourceKey<?> dependency : entry.dependecies) {
+                levels.merge(dependency, level + 1, Math::max);
+            }
+        }
+        return waves;
+    }
+
+    private static void addToWave(List<List<Entry<?>>> waves, int level, Entry<?> entry) {
+        while (waves.size() <= level) {
+            waves.add(new ArrayList<>());
+        }
+        waves.get(level).add(entry);
+    }
+
+    /**
+     * Closes the entries of a wave in parallel.
+     *
+     * Dependencies of the entries whose closer timed out are added to <code>keptEntries</code>.
+     */
+    private void closeWave(
+            List<Entry<?>> wave,
+            Executor executor,
+            Duration timeout,
+            List<ClosingFailedException> exceptions,
+            Map<Entry<?>, ClosingFailedException> keptEntries) {
+        
+        long deadline = System.nanoTime() + timeout.toNanos();
+        List<FutureTask<Void>> tasks = new ArrayList<>(wave.size());
+        for (Entry<?> entry : wave) {
+            FutureTask<Void> task = new FutureTask<>(() -> closeInTransition(entry), null);
+            tasks.add(task);
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                finishClosing(entry, false);
+                task.cancel(false);
+            }
+        }
+        for (int i = 0; i < wave.size(); i++) {
+            ResourceKey<?> key = wave.get(i).key;
+            try {
+                tasks.get(i).get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                exceptions.add(cause instanceof ClosingFailedException ?
+                        (ClosingFailedException) cause :
+                        new ClosingFailedException(key, e));
+            } catch (TimeoutException e) {
+                ClosingFailedException exception = new ClosingFailedException(key, e);
+                exceptions.add(exception);
+                for (Entry<?> dependencyEntry : collectDependenciesLocked(wave.get(i))) {
+                    keptEntries.putIfAbsent(dependencyEntry, exception);
+                }
+            } catch (CancellationException e) {
+                exceptions.add(new ClosingFailedException(key, e));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                exceptions.add(new ClosingFailedException(key, e));
+            }
+        }
+    }
+
+    private synchronized List<Entry<?>> collectDependenciesLocked(Entry<?> entry) {
+        return collectDependencies(entry);
+    }
+
+    private void closeInTransition(Entry<?> entry) {
+        boolean closed = false;
+        try {
+            drainLeases(entry);
+            entry.closeResource();
+            closed = true;
+        } finally {
+            finishClosing(entry, closed);
+        }
+    }
+
+    private synchronized void finishClosing(Entry<?> entry, boolean closed) {
+        if (closed) {
+            entry.setResource(null);
+        } else {
+            entry.generation.cancelClosing();
         }
-        throwIfAny(exceptions);
+        entry.transition = null;
+        notifyAll();
     }
 
-    @Override
-    public synchronized void closeAll() {
-        closeAll(false);
+    private void awaitTransitions(Entry<?> entry) {
+        Entry<?> transitingEntry;
+        do {
+            List<Entry<?>> affectedEntries = collectDependants(entry);
+            affectedEntries.add(entry);
+            transitingEntry = findTransitingEntry(affectedEntries);
+            awaitTransitionBeforeClosing(entry.key, transitingEntry);
+        } while (transitingEntry != null);
     }
 
-    @Override
-    public synchronized void closeAll(boolean aggressive) {
-        List<ClosingFailedException> exceptions = new ArrayList<>();
-        for (ResourceKey<?> key : entries.keySet()) {
-            try {
-                close(key, aggressive);
-            } catch (ClosingFailedException e) {
-                addOrThrow(exceptions, e, aggressive);
+    private void awaitAllTransitions() {
+        Entry<?> transitingEntry;
+        do {
+            transitingEntry = findTransitingEntry(entries.values());
+            awaitTransitionBeforeClosing(null, transitingEntry);
+        } while (transitingEntry != null);
+    }
+
+    private Entry<?> findTransitingEntry(Collection<Entry<?>> entriesToCheck) {
+        for (Entry<?> entry : entriesToCheck) {
+            if (entry.transition != null) {
+                return entry;
             }
         }
-        throwIfAny(exceptions);
+        return null;
+    }
+
+    private void awaitTransitionBeforeClosing(ResourceKey<?> key, Entry<?> transitingEntry) {
+        if (transitingEntry == null) {
+            return;
+        }
+        try {
+            awaitTransition(transitingEntry);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ClosingFailedException(key != null ? key : transitingEntry.key, e);
+        } catch (TimeoutException e) {
+            throw new ClosingFailedException(key != null ? key : transitingEntry.key, e);
+        }
     }
 
     private void addOrThrow(
@@ -180,128 +2090,159 @@ public class DefaultResourceManager implements ResourceManager {
 
     @Override
     public synchronized <T> T remove(ResourceKey<T> key, boolean removeDependants) {
+        checkNotFrozen();
         close(key, false);
 
-        T resource = getEntry(key).resource;
+        T resource = getEntry(key).resource();
 
         if (removeDependants) {
-            List<ResourceKey<?>> allDependants = getAllDependants(key);
+            List<ResourceKey<?>> allDependants = graph.collectDependants(key);
             for (ResourceKey<?> dependant : allDependants) {
-                entries.remove(dependant);
-                dependants.remove(dependant);
+                removeEntry(dependant);
             }
         }
-        entries.remove(key);
-        dependants.remove(key);
+        removeEntry(key);
 
         return resource;
     }
 
     @Override
     public synchronized void clear() {
+        checkNotFrozen();
         closeAll();
         entries.clear();
-        dependants.clear();
+        publishedEntries.clear();
+        graph.clear();
+        usedIds.clear();
+        openIds.clear();
+        entriesById = new Entry<?>[16];
+        openCount = 0;
+        openWeight = 0L;
+        reclaimedCount = 0;
+        invalidateSnapshot(true);
+    }
+
+    private void removeEntry(ResourceKey<?> key) {
+        Entry<?> entry = entries.remove(key);
+        publishedEntries.remove(key);
+        graph.remove(key);
+        if (entry != null) {
+            entry.setResource(null);
+            usedIds.clear(entry.id);
+            entriesById[entry.id] = null;
+            invalidateSnapshot(true);
+        }
     }
 
-    private List<ResourceKey<?>> getAllDependants(ResourceKey<?> key) {
-        List<ResourceKey<?>> allDependants = new ArrayList<>();
-        Set<ResourceKey<?>> currentDependants = getDependants(key);
-        while (!currentDependants.isEmpty()) {
-            allDependants.addAll(currentDependants);
-            Set<ResourceKey<?>> newDependants = new HashSet<>();
-            for (ResourceKey<?> currentKey : currentDependants) {
-                newDependants.addAll(getDependants(currentKey));
+    private void updateOpenState(Entry<?> entry) {
+        boolean open = entry.resource() != null;
+        if (openIds.get(entry.id) != open) {
+            openIds.set(entry.id, open);
+            openCount += open ? 1 : -1; // NOSONAR modified only with holding the lock
+            if (open) {
+                entry.openWeight = entry.weight;
+            }
+            openWeight += open ? entry.openWeight : -entry.openWeight; // NOSONAR modified only with holding the lock
+            invalidateSnapshot(false);
+            updatePins(entry);
+            if (!open && !entry.parentLeases.isEmpty()) {
+                releaseAll(entry.parentLeases);
+                entry.parentLeases = Collections.emptyList();
+                updateLeasingEntryCount(-1);
             }
-            newDependants.removeAll(allDependants);
-            currentDependants = newDependants;
         }
-        return allDependants;
     }
 
-    private Set<ResourceKey<?>> getDependants(ResourceKey<?> key) {
-        Set<ResourceKey<?>> result = dependants.get(key);
-        return result == null ? new HashSet<>() : result;
+    private void invalidateSnapshot(boolean structural) {
+        snapshot = null;
+        if (structural) {
+            snapshotKeyTable = null;
+        }
     }
 
     @Override
-    public synchronized boolean isOpen(ResourceKey<?> key) {
-        return getEntry(key).resource != null;
+    public boolean isOpen(ResourceKey<?> key) {
+        if (isParentKey(key)) {
+            return parent.isOpen(key);
+        }
+        return getEntry(key).resource() != null;
     }
 
     @Override
-    public synchronized boolean hasOpen() {
-        for (Entry<?> entry : entries.values()) {
-            if (entry.resource != null) {
-                return true;
-            }
-        }
-        return false;
+    public boolean hasOpen() {
+        expungeReclaimed();
+        return openCount > 0;
     }
 
     @Override
-    public synchronized int countOpen() {
-        int result = 0;
-        for (Entry<?> entry : entries.values()) {
-            if (entry.resource != null) {
-                result++;
-            }
-        }
-        return result;
+    public int countOpen() {
+        expungeReclaimed();
+        return openCount;
     }
 
     @Override
     public synchronized Set<ResourceKey<?>> openKeySet() { // NOSONAR
-        Set<ResourceKey<?>> result = new LinkedHashSet<>();
-        for (Entry<?> entry : entries.values()) {
-            if (entry.resource != null) {
-                result.add(entry.key);
-            }
-        }
-        return result;
+        expungeReclaimed();
+        return collectKeys(openIds);
     }
 
     @Override
     public synchronized Set<ResourceKey<?>> closedKeySet() { // NOSONAR
-        Set<ResourceKey<?>> result = new LinkedHashSet<>();
-        for (Entry<?> entry : entries.values()) {
-            if (entry.resource == null) {
-                result.add(entry.key);
+        expungeReclaimed();
+        BitSet closedIds = (BitSet) usedIds.clone();
+        closedIds.andNot(openIds);
+        return collectKeys(closedIds);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The last snapshot is cached until the next modification,
+     * so repeated calls are lock-free and copy-free.
+     * Snapshots share their key table until the next registration or removal.
+     */
+    @Override
+    public ResourceSnapshot snapshot() {
+        expungeReclaimed();
+        ResourceSnapshot result = snapshot;
+        if (result != null) {
+            return result;
+        }
+        return createSnapshot();
+    }
+
+    private synchronized ResourceSnapshot createSnapshot() {
+        if (snapshot == null) {
+            if (snapshotKeyTable == null) {
+                ResourceKey<?>[] keysById = new ResourceKey<?>[usedIds.length()];
+                for (int id = usedIds.nextSetBit(0); id >= 0; id = usedIds.nextSetBit(id + 1)) {
+                    keysById[id] = entriesById[id].key;
+                }
+                snapshotKeyTable = new ResourceSnapshot.KeyTable(keysById);
             }
+            snapshot = new ResourceSnapshot(snapshotKeyTable, (BitSet) openIds.clone(), openCount);
+        }
+        return snapshot;
+    }
+
+    private Set<ResourceKey<?>> collectKeys(BitSet ids) {
+        Set<ResourceKey<?>> result = new LinkedHashSet<>();
+        for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+            result.add(entriesById[id].key);
         }
         return result;
     }
 
     private <T> Entry<T> getEntry(ResourceKey<T> key) {
-        Entry<T> entry = CastUtil.cast(entries.get(key));
+        Entry<T> entry = CastUtil.cast(publishedEntries.get(key));
         if (entry == null) {
             throw new NoSuchElementException(String.format("Key not found: %s", key));
         }
         return entry;
     }
 
-    private void checkCycle(ResourceKey<?> key, Collection<? extends ResourceKey<?>> dependencies) {
-        Set<ResourceKey<?>> currentDependencies = new HashSet<>(dependencies);
-        Set<ResourceKey<?>> allDependencies = new HashSet<>(dependencies);
-        while (!currentDependencies.isEmpty()) {
-            Set<ResourceKey<?>> nextDependencies = new HashSet<>();
-            for (ResourceKey<?> dependency : currentDependencies) {
-                if (dependency.equals(key)) {
-                    throw new CyclicDependencyException();
-                }
-                Entry<?> entry = entries.get(key);
-                if (entry != null) {
-                    nextDependencies.addAll(entry.dependecies);
-                }
-            }
-            nextDependencies.removeAll(allDependencies);
-            allDependencies.addAll(nextDependencies);
-            currentDependencies = nextDependencies;
-        }
-    }
-
 
-    private class Entry<T> {
+    private class Entry<T> implements ResourceHandle<T> {
 
         final ResourceKey<T> key;
 
@@ -309,9 +2250,42 @@ public class DefaultResourceManager implements ResourceManager {
 
         final ResourceCloser<T> closer;
 
-        final List<ResourceKey<?>> dependecies;
+        final ResourceKey<?>[] dependecies;
 
-        T resource = null;
+        final ResourceKey<?>[] parentDependencies;
+
+        List<ResourceLease<?>> parentLeases = Collections.emptyList();
+
+        volatile T resource = null;
+
+        volatile ReclaimableReference<T> reclaimableResource = null;
+
+        volatile boolean reclaimable = false;
+
+        boolean reclaimed = false;
+
+        Transition transition = null;
+
+        int id = -1;
+
+        int frozenIndex = -1;
+
+        volatile Generation generation = new Generation();
+
+        /**
+         * Generation of the new instance, while staged by a refresh, accessed by the refreshing thread only
+         */
+        Generation stagedGeneration = null;
+
+        volatile long idleTimeoutNanos = 0L;
+
+        volatile boolean accessed = false;
+
+        long lastAccessNanos = 0L;
+
+        volatile long weight = 1L;
+
+        long openWeight = 0L;
 
 
         Entry(
@@ -323,32 +2297,453 @@ public class DefaultResourceManager implements ResourceManager {
             this.key = key;
             this.factory = factory;
             this.closer = closer;
-            this.dependecies = new ArrayList<>(dependecies);
+            List<ResourceKey<?>> ownDependencies = new ArrayList<>(dependecies.size());
+            List<ResourceKey<?>> parentDependencyList = new ArrayList<>();
+            for (ResourceKey<?> dependency : dependecies) {
+                if (parent != null && parent.containsKey(dependency)) {
+                    parentDependencyList.add(dependency);
+                } else {
+                    ownDependencies.add(dependency);
+                }
+            }
+            this.dependecies = ownDependencies.toArray(new ResourceKey<?>[ownDependencies.size()]);
+            this.parentDependencies = parentDependencyList.toArray(new ResourceKey<?>[parentDependencyList.size()]);
         }
 
 
-        T get() {
-            if (resource == null) {
-                try {
-                    resource = factory.create(DefaultResourceManager.this, key);
-                } catch (Exception e) {
-                    throw new OpeningFailedException(key, e);
-                }
+        @Override
+        public ResourceKey<T> getKey() {
+            return key;
+        }
+
+        @Override
+        public T get() {
+            return currentResource(this);
+        }
+
+        @Override
+        public T open() {
+            return openResource(this);
+        }
+
+        /**
+         * Gets the open resource, held strongly or softly
+         *
+         * @return The resource, or <code>null</code> if closed or reclaimed
+         */
+        T resource() {
+            T strongResource = resource;
+            if (strongResource != null) {
+                return strongResource;
             }
-            return resource;
+            ReclaimableReference<T> reference = reclaimableResource;
+            return reference != null ? reference.get() : null;
         }
 
         void close() {
+            if (resource() != null) {
+                closeResource();
+                setResource(null);
+            }
+        }
+
+        void setResource(T resource) {
+            if (resource == null && resource() != null) {
+                generation = new Generation();
+            }
+            holdResource(resource);
             if (resource != null) {
-                try {
-                    closer.close(DefaultResourceManager.this, key, resource);
-                } catch (Exception e) {
-                    throw new ClosingFailedException(key, e);
+                lastAccessNanos = System.nanoTime();
+            }
+            setReclaimed(this, false);
+            updateOpenState(this);
+        }
+
+        /**
+         * Holds the resource softly if it is reclaimable and no dependant needs it, strongly otherwise
+         */
+        void holdResource(T resource) {
+            if (resource != null && reclaimable) {
+                ReclaimableReference<T> reference = reclaimableResource;
+                if (reference == null || reference.get() != resource) {
+                    reclaimableResource = new ReclaimableReference<>(this, resource, reclaimedReferences);
+                }
+                this.resource = hasActiveDependant(this) ? resource : null;
+            } else {
+                this.resource = resource;
+                reclaimableResource = null;
+            }
+        }
+
+        RetiredResource<T> swap(Object newResource) {
+            RetiredResource<T> retiredResource = new RetiredResource<>(this, resource(), generation);
+            generation.beginClosing();
+            generation = stagedGeneration != null ? stagedGeneration : new Generation();
+            setResource(CastUtil.cast(newResource));
+            return retiredResource;
+        }
+
+        void closeResource() {
+            T currentResource = resource();
+            if (currentResource == null) {
+                return;
+            }
+            try {
+                closer.close(DefaultResourceManager.this, key, currentResource);
+            } catch (Exception e) {
+                throw new ClosingFailedException(key, e);
+            }
+        }
+
+    }
+
+
+    /**
+     * Compiled dependency graph of a frozen manager, entries are indexed in topological order
+     *
+     * Adjacency lists are stored in compressed sparse row format.
+     * Must be used with holding the manager lock.
+     */
+    private class FrozenTopology {
+
+        final Entry<?>[] entriesInOrder;
+
+        final int[] dependencyOffsets;
+
+        final int[] dependencyIndexes;
+
+        final int[] dependantOffsets;
+
+        final int[] dependantIndexes;
+
+        final int[] visitEpochs;
+
+        int visitEpoch = 0;
+
+
+        FrozenTopology() {
+            List<ResourceKey<?>> keysInOrder = graph.keysInOrder();
+            int size = keysInOrder.size();
+            entriesInOrder = new Entry<?>[size];
+            int edgeCount = 0;
+            for (int i = 0; i < size; i++) {
+                Entry<?> entry = getEntry(keysInOrder.get(i));
+                entry.frozenIndex = i;
+                entriesInOrder[i] = entry;
+                edgeCount += entry.dependecies.length;
+            }
+
+            dependencyOffsets = new int[size + 1];
+            dependencyIndexes = new int[edgeCount];
+            int[] dependantCounts = new int[size];
+            int edgeIndex = 0;
+            for (int i = 0; i < size; i++) {
+                dependencyOffsets[i] = edgeIndex;
+                for (ResourceKey<?> dependency : entriesInOrder[i].dependecies) {
+                    int dependencyIndex = entries.get(dependency).frozenIndex;
+                    dependencyIndexes[edgeIndex] = dependencyIndex;
+                    dependantCounts[dependencyIndex]++;
+                    edgeIndex++;
+                }
+            }
+            dependencyOffsets[size] = edgeIndex;
+
+            dependantOffsets = new int[size + 1];
+            for (int i = 0; i < size; i++) {
+                dependantOffsets[i + 1] = dependantOffsets[i] + dependantCounts[i];
+            }
+            dependantIndexes = new int[edgeCount];
+            int[] nextDependantPositions = Arrays.copyOf(dependantOffsets, size);
+            for (int i = 0; i < size; i++) {
+                for (int j = dependencyOffsets[i]; j < dependencyOffsets[i + 1]; j++) {
+                    int dependencyIndex = dependencyIndexes[j];
+                    dependantIndexes[nextDependantPositions[dependencyIndex]] = i;
+                    nextDependantPositions[dependencyIndex]++;
+                }
+            }
+
+            visitEpochs = new int[size];
+        }
+
+
+        Entry<?> findClosingDependency(Entry<?> entry) {
+            int index = entry.frozenIndex;
+            for (int i = dependencyOffsets[index]; i < dependencyOffsets[index + 1]; i++) {
+                Entry<?> dependencyEntry = entriesInOrder[dependencyIndexes[i]];
+                if (dependencyEntry.transition != null && !dependencyEntry.transition.opening) {
+                    return dependencyEntry;
+                }
+            }
+            return null;
+        }
+
+        boolean areDependenciesOpen(Entry<?> entry) {
+            int index = entry.frozenIndex;
+            for (int i = dependencyOffsets[index]; i < dependencyOffsets[index + 1]; i++) {
+                if (entriesInOrder[dependencyIndexes[i]].resource() == null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        List<Entry<?>> collectClosedDependencies(Entry<?> entry) {
+            return collect(entry.frozenIndex, dependencyOffsets, dependencyIndexes, true);
+        }
+
+        List<Entry<?>> collectDependencies(Entry<?> entry) {
+            return collect(entry.frozenIndex, dependencyOffsets, dependencyIndexes, false);
+        }
+
+        List<Entry<?>> collectDependants(Entry<?> entry) {
+            return collect(entry.frozenIndex, dependantOffsets, dependantIndexes, false);
+        }
+
+        private List<Entry<?>> collect(int startIndex, int[] offsets, int[] indexes, boolean closedOnly) {
+            visitEpoch++;
+            int[] collectedIndexes = new int[8];
+            int collectedCount = 0;
+            int[] stack = new int[8];
+            int stackSize = 1;
+            stack[0] = startIndex;
+            while (stackSize > 0) {
+                stackSize--;
+                int index = stack[stackSize];
+                for (int i = offsets[index]; i < offsets[index + 1]; i++) {
+                    int nextIndex = indexes[i];
+                    if (visitEpochs[nextIndex] == visitEpoch ||
+                            (closedOnly && entriesInOrder[nextIndex].resource() != null)) {
+                        continue;
+                    }
+                    visitEpochs[nextIndex] = visitEpoch;
+                    if (collectedCount == collectedIndexes.length) {
+                        collectedIndexes = Arrays.copyOf(collectedIndexes, collectedCount * 2);
+                    }
+                    collectedIndexes[collectedCount] = nextIndex;
+                    collectedCount++;
+                    if (stackSize == stack.length) {
+                        stack = Arrays.copyOf(stack, stackSize * 2);
+                    }
+                    stack[stackSize] = nextIndex;
+                    stackSize++;
+                }
+            }
+            Arrays.sort(collectedIndexes, 0, collectedCount);
+            List<Entry<?>> result = new ArrayList<>(collectedCount + 1);
+            for (int i = 0; i < collectedCount; i++) {
+                result.add(entriesInOrder[collectedIndexes[i]]);
+            }
+            return result;
+        }
+
+        List<List<Entry<?>>> groupOpenIntoWaves() {
+            int[] levels = new int[entriesInOrder.length];
+            List<List<Entry<?>>> waves = new ArrayList<>();
+            for (int index = entriesInOrder.length - 1; index >= 0; index--) {
+                Entry<?> entry = entriesInOrder[index];
+                if (entry.resource() == null) {
+                    continue;
+                }
+
+                int level = levels[index];
+                addToWave(waves, level, entry);
+                for (int i = dependencyOffsets[index]; i < dependencyOffsets[index + 1]; i++) {
+                    int dependencyIndex = dependencyIndexes[i];
+                    levels[dependencyIndex] = Math.max(levels[dependencyIndex], level + 1);
+                }
+            }
+            return waves;
+        }
+
+    }
+
+
+    private class Lease<T> implements ResourceLease<T> {
+
+        private final ResourceKey<T> key;
+
+        private final T resource;
+
+        private final Generation generation;
+
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+
+        Lease(ResourceKey<T> key, T resource, Generation generation) {
+            this.key = key;
+            this.resource = resource;
+            this.generation = generation;
+        }
+
+
+        @Override
+        public ResourceKey<T> getKey() {
+            return key;
+        }
+
+        @Override
+        public T get() {
+            return resource;
+        }
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                release(generation);
+            }
+        }
+
+    }
+
+
+    /**
+     * Lease counter of one instance of a resource
+     *
+     * Leases are counted lock-free.
+     * Once closing began, no new leases will be given,
+     * and the release of the last lease has to be notified on the manager.
+     */
+    private static class Generation {
+
+        private static final int CLOSING = 1 << 30;
+
+        private final AtomicInteger state = new AtomicInteger(0);
+
+        private final AtomicReference<Runnable> drainedAction = new AtomicReference<>();
+
+
+        boolean tryAcquire() {
+            int currentState;
+            do {
+                currentState = state.get();
+                if ((currentState & CLOSING) != 0) {
+                    return false;
                 }
-                resource = null;
+            } while (!state.compareAndSet(currentState, currentState + 1));
+            return true;
+        }
+
+        /**
+         * @return <code>true</code> if this was the last lease and closing began
+         */
+        boolean release() {
+            return state.decrementAndGet() == CLOSING;
+        }
+
+        int leaseCount() {
+            return state.get() & ~CLOSING;
+        }
+
+        boolean isClosing() {
+            return (state.get() & CLOSING) != 0;
+        }
+
+        void beginClosing() {
+            state.updateAndGet(currentState -> currentState | CLOSING);
+        }
+
+        boolean tryBeginClosing() {
+            return state.compareAndSet(0, CLOSING);
+        }
+
+        void cancelClosing() {
+            state.updateAndGet(currentState -> currentState & ~CLOSING);
+        }
+
+        /**
+         * Runs the action once closing began and no lease is held,
+         * either immediately or on the release of the last lease
+         */
+        void whenDrained(Runnable action) {
+            drainedAction.set(action);
+            if (state.get() == CLOSING && drainedAction.compareAndSet(action, null)) {
+                action.run();
+            }
+        }
+
+        void runDrainedAction() {
+            Runnable action = drainedAction.getAndSet(null);
+            if (action != null) {
+                action.run();
+            }
+        }
+
+    }
+
+
+    /**
+     * Instance of a resource which was replaced or was never published
+     */
+    private class RetiredResource<T> {
+
+        final Entry<T> entry;
+
+        final T resource;
+
+        final Generation generation;
+
+
+        RetiredResource(Entry<T> entry, Object resource, Generation generation) {
+            this.entry = entry;
+            this.resource = CastUtil.cast(resource);
+            this.generation = generation;
+        }
+
+
+        void close() {
+            if (resource == null) {
+                return;
+            }
+            try {
+                entry.closer.close(DefaultResourceManager.this, entry.key, resource);
+            } catch (Exception e) {
+                throw new ClosingFailedException(entry.key, e);
             }
         }
 
     }
 
+
+    /**
+     * Soft reference to a reclaimable resource, enqueued when the resource was reclaimed
+     */
+    private static class ReclaimableReference<T> extends SoftReference<T> {
+
+        final Entry<T> entry;
+
+
+        ReclaimableReference(Entry<T> entry, T resource, ReferenceQueue<Object> queue) {
+            super(resource, queue);
+            this.entry = entry;
+        }
+
+    }
+
+
+    private static class Transition {
+
+        final ResourceKey<?> key;
+
+        final Thread owner;
+
+        final boolean opening;
+
+        final boolean refreshing;
+
+        RuntimeException failure = null;
+
+
+        Transition(ResourceKey<?> key, Thread owner, boolean opening) {
+            this(key, owner, opening, false);
+        }
+
+        Transition(ResourceKey<?> key, Thread owner, boolean opening, boolean refreshing) {
+            this.key = key;
+            this.owner = owner;
+            this.opening = opening;
+            this.refreshing = refreshing;
+        }
+
+    }
+
 }
@@ -0,0 +1,633 @@
+package hu.webarticum.resourcemanager.resource;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Dependency graph of resource keys with an incrementally maintained topological order.
+ *
+ * Dependencies always precede their dependants in the order.
+ * Keys can be referenced as dependencies before they are added,
+ * such keys are stored as placeholders.
+ * New keys are appended to the order, new placeholders are prepended to it,
+ * so in common cases adding a key does not touch the order at all.
+ * When an added dependency violates the order, the affected region will be
+ * reordered with the Pearce-Kelly algorithm, which also detects cycles.
+ * Nodes are identified by reusable int ids, and all node data
+ * (including the key index and the adjacency lists) is stored in primitive arrays.
+ * This class is not thread-safe.
+ */
+class DependencyGraph {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private static final int[] NO_IDS = new int[0];
+
+
+    private ResourceKey<?>[] indexKeys = new ResourceKey<?>[MIN_CAPACITY * 2];
+
+    private int[] indexIds = new int[MIN_CAPACITY * 2];
+
+    private int indexSize = 0;
+
+    private ResourceKey<?>[] keys = new ResourceKey<?>[MIN_CAPACITY];
+
+    private int[][] dependencies = new int[MIN_CAPACITY][];
+
+    private int[][] dependants = new int[MIN_CAPACITY][];
+
+    private int[] dependantCounts = new int[MIN_CAPACITY];
+
+    private int[] positions = new int[MIN_CAPACITY];
+
+    private int[] visitEpochs = new int[MIN_CAPACITY];
+
+    private final BitSet addedIds = new BitSet();
+
+    private int idCount = 0;
+
+    private int[] freeIds = new int[MIN_CAPACITY];
+
+    private int freeIdCount = 0;
+
+    private int[] order = createOrder(MIN_CAPACITY);
+
+    private int headIndex = MIN_CAPACITY / 2;
+
+    private int tailIndex = MIN_CAPACITY / 2;
+
+    private int visitEpoch = 0;
+
+
+    /**
+     * Adds a key with its dependencies
+     *
+     * @param key The key to add
+     * @param dependencies Dependencies of the key
+     * @throws CyclicDependencyException if the new dependencies would cause a cycle
+     */
+    void add(ResourceKey<?> key, Collection<? extends ResourceKey<?>> dependencies) {
+        int id = idOf(key);
+        if (id < 0) {
+            id = createNode(key, true);
+        }
+        addedIds.set(id);
+        int[] dependencyIds = new int[dependencies.size()];
+        int dependencyCount = 0;
+        for (ResourceKey<?> dependency : dependencies) {
+            int dependencyId = idOf(dependency);
+            if (dependencyId < 0) {
+                dependencyId = createNode(dependency, false);
+            }
+            dependencyIds[dependencyCount] = dependencyId;
+            dependencyCount++;
+        }
+        dependencyIds = distinct(dependencyIds);
+
+        this.dependencies[id] = NO_IDS;
+        for (int i = 0; i < dependencyIds.length; i++) {
+            int dependencyId = dependencyIds[i];
+            if (!addEdge(dependencyId, id)) {
+                ResourceKey<?> dependency = keys[dependencyId];
+                this.dependencies[id] = Arrays.copyOf(dependencyIds, i);
+                remove(key);
+                for (int j = i; j < dependencyIds.length; j++) {
+                    dropIfUnused(dependencyIds[j]);
+                }
+                throw new CyclicDependencyException(
+                        String.format("Cyclic dependency detected: %s -> %s", key, dependency));
+            }
+        }
+        this.dependencies[id] = dependencyIds;
+    }
+
+    /**
+     * Adds multiple keys with their dependencies atomically
+     *
+     * The batch is sorted topologically before adding,
+     * so no key depends on a later one.
+     *
+     * @param dependenciesByKey Dependencies of each key to add
+     * @throws CyclicDependencyException if the new dependencies would cause a cycle
+     */
+    void addAll(Map<ResourceKey<?>, ? extends Collection<? extends ResourceKey<?>>> dependenciesByKey) {
+        Map<ResourceKey<?>, Integer> remainingDependencyCounts = new HashMap<>();
+        Map<ResourceKey<?>, List<ResourceKey<?>>> batchDependants = new HashMap<>();
+        Deque<ResourceKey<?>> readyKeys = new ArrayDeque<>();
+        for (Map.Entry<ResourceKey<?>, ? extends Collection<? extends ResourceKey<?>>> entry :
+                dependenciesByKey.entrySet()) {
+            ResourceKey<?> key = entry.getKey();
+            int dependencyCount = 0;
+            for (ResourceKey<?> dependency : entry.getValue()) {
+                if (dependenciesByKey.containsKey(dependency)) {
+                    dependencyCount++;
+                    batchDependants.computeIfAbsent(dependency, k -> new ArrayList<>()).add(key);
+                }
+            }
+            if (dependencyCount == 0) {
+                readyKeys.add(key);
+            } else {
+                remainingDependencyCounts.put(key, dependencyCount);
+            }
+        }
+
+        List<ResourceKey<?>> sortedKeys = new ArrayList<>(dependenciesByKey.size());
+        while (!readyKeys.isEmpty()) {
+            ResourceKey<?> key = readyKeys.remove();
+            sortedKeys.add(key);
+            for (ResourceKey<?> dependant : batchDependants.getOrDefault(key, Collections.emptyList())) {
+                int remainingDependencyCount = remainingDependencyCounts.get(dependant) - 1;
+                remainingDependencyCounts.put(dependant, remainingDependencyCount);
+                if (remainingDependencyCount == 0) {
+                    readyKeys.add(dependant);
+                }
+            }
+        }
+        if (sortedKeys.size() < dependenciesByKey.size()) {
+            throw new CyclicDependencyException("Cyclic dependency detected in batch");
+        }
+
+        for (int i = 0; i < sortedKeys.size(); i++) {
+            ResourceKey<?> key = sortedKeys.get(i);
+            try {
+                add(key, dependenciesByKey.get(key));
+            } catch (CyclicDependencyException e) {
+                for (int j = i - 1; j >= 0; j--) {
+                    remove(sortedKeys.get(j));
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Removes a key.
+     *
+     * If there are dependants of this key, it will be kept as a placeholder.
+     *
+     * @param key The key to remove
+     */
+    void remove(ResourceKey<?> key) {
+        int id = idOf(key);
+        if (id < 0 || !addedIds.get(id)) {
+            return;
+        }
+
+        for (int dependencyId : dependencies[id]) {
+            removeDependant(dependencyId, id);
+            dropIfUnused(dependencyId);
+        }
+        dependencies[id] = NO_IDS;
+        addedIds.clear(id);
+        dropIfUnused(id);
+    }
+
+    void clear() {
+        indexKeys = new ResourceKey<?>[MIN_CAPACITY * 2];
+        indexIds = new int[MIN_CAPACITY * 2];
+        indexSize = 0;
+        keys = new ResourceKey<?>[MIN_CAPACITY];
+        dependencies = new int[MIN_CAPACITY][];
+        dependants = new int[MIN_CAPACITY][];
+        dependantCounts = new int[MIN_CAPACITY];
+        positions = new int[MIN_CAPACITY];
+        visitEpochs = new int[MIN_CAPACITY];
+        addedIds.clear();
+        idCount = 0;
+        freeIds = new int[MIN_CAPACITY];
+        freeIdCount = 0;
+        order = createOrder(MIN_CAPACITY);
+        headIndex = MIN_CAPACITY / 2;
+        tailIndex = MIN_CAPACITY / 2;
+    }
+
+    /**
+     * Collects transitive dependencies of the given key in topological order.
+     *
+     * Only dependencies accepted by the filter will be collected and traversed.
+     *
+     * @param key The key
+     * @param filter Filter for dependencies
+     * @return Keys of the dependencies, each dependency precedes its dependants
+     */
+    List<ResourceKey<?>> collectDependencies(ResourceKey<?> key, Predicate<ResourceKey<?>> filter) {
+        int id = idOf(key);
+        if (id < 0) {
+            return new ArrayList<>();
+        }
+
+        int epoch = nextVisitEpoch();
+        IntList collectedPositions = new IntList();
+        IntList stack = new IntList();
+        stack.add(id);
+        while (!stack.isEmpty()) {
+            for (int dependencyId : dependencies[stack.pop()]) {
+                if (visitEpochs[dependencyId] != epoch && filter.test(keys[dependencyId])) {
+                    visitEpochs[dependencyId] = epoch;
+                    collectedPositions.add(positions[dependencyId]);
+                    stack.add(dependencyId);
+                }
+            }
+        }
+        return toOrderedKeys(collectedPositions);
+    }
+
+    /**
+     * Collects transitive dependants of the given key in topological order.
+     *
+     * @param key The key
+     * @return Keys of the dependants, each dependency precedes its dependants
+     */
+    List<ResourceKey<?>> collectDependants(ResourceKey<?> key) {
+        int id = idOf(key);
+        if (id < 0) {
+            return new ArrayList<>();
+        }
+
+        int epoch = nextVisitEpoch();
+        IntList collectedPositions = new IntList();
+        IntList stack = new IntList();
+        stack.add(id);
+        while (!stack.isEmpty()) {
+            int nodeId = stack.pop();
+            int[] dependantIds = dependants[nodeId];
+            for (int i = 0; i < dependantCounts[nodeId]; i++) {
+                int dependantId = dependantIds[i];
+                if (visitEpochs[dependantId] != epoch) {
+                    visitEpochs[dependantId] = epoch;
+                    collectedPositions.add(positions[dependantId]);
+                    stack.add(dependantId);
+                }
+            }
+        }
+        return toOrderedKeys(collectedPositions);
+    }
+
+    /**
+     * Gets all keys (including placeholders) in topological order
+     *
+     * @return Keys in topological order
+     */
+    List<ResourceKey<?>> keysInOrder() {
+        List<ResourceKey<?>> result = new ArrayList<>(indexSize);
+        for (int i = headIndex; i < tailIndex; i++) {
+            int id = order[i];
+            if (id >= 0) {
+                result.add(keys[id]);
+            }
+        }
+        return result;
+    }
+
+    private List<ResourceKey<?>> toOrderedKeys(IntList positionsToOrder) {
+        positionsToOrder.sort();
+        List<ResourceKey<?>> result = new ArrayList<>(positionsToOrder.size() + 1);
+        for (int i = 0; i < positionsToOrder.size(); i++) {
+            result.add(keys[order[positionsToOrder.get(i)]]);
+        }
+        return result;
+    }
+
+    private int createNode(ResourceKey<?> key, boolean append) {
+        if (append ? tailIndex == order.length : headIndex == 0) {
+            rebuildOrder();
+        }
+        int id = allocateId();
+        keys[id] = key;
+        dependencies[id] = NO_IDS;
+        dependants[id] = NO_IDS;
+        dependantCounts[id] = 0;
+        visitEpochs[id] = 0;
+        if (append) {
+            positions[id] = tailIndex;
+            tailIndex++;
+        } else {
+            headIndex--;
+            positions[id] = headIndex;
+        }
+        order[positions[id]] = id;
+        putIndex(key, id);
+        return id;
+    }
+
+    private int allocateId() {
+        if (freeIdCount > 0) {
+            freeIdCount--;
+            return freeIds[freeIdCount];
+        }
+        if (idCount == keys.length) {
+            int capacity = idCount * 2;
+            keys = Arrays.copyOf(keys, capacity);
+            dependencies = Arrays.copyOf(dependencies, capacity);
+            dependants = Arrays.copyOf(dependants, capacity);
+            dependantCounts = Arrays.copyOf(dependantCounts, capacity);
+            positions = Arrays.copyOf(positions, capacity);
+            visitEpochs = Arrays.copyOf(visitEpochs, capacity);
+        }
+        int id = idCount;
+        idCount++;
+        return id;
+    }
+
+    private void dropIfUnused(int id) {
+        if (addedIds.get(id) || dependantCounts[id] > 0 || keys[id] == null) {
+            return;
+        }
+
+        removeIndex(keys[id]);
+        order[positions[id]] = -1;
+        keys[id] = null;
+        dependencies[id] = null;
+        dependants[id] = null;
+        if (freeIdCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeIdCount * 2);
+        }
+        freeIds[freeIdCount] = id;
+        freeIdCount++;
+    }
+
+    private void addDependant(int id, int dependantId) {
+        int count = dependantCounts[id];
+        int[] dependantIds = dependants[id];
+        if (count == dependantIds.length) {
+            dependantIds = Arrays.copyOf(dependantIds, count + (count >> 1) + 1);
+            dependants[id] = dependantIds;
+        }
+        dependantIds[count] = dependantId;
+        dependantCounts[id] = count + 1;
+    }
+
+    private void removeDependant(int id, int dependantId) {
+        int count = dependantCounts[id];
+        int[] dependantIds = dependants[id];
+        for (int i = 0; i < count; i++) {
+            if (dependantIds[i] == dependantId) {
+                dependantIds[i] = dependantIds[count - 1];
+                dependantCounts[id] = count - 1;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Compacts the order into a new array with free space at both ends
+     */
+    private void rebuildOrder() {
+        int size = indexSize;
+        int capacity = Math.max(MIN_CAPACITY, size * 3);
+        int[] newOrder = createOrder(capacity);
+        int newHeadIndex = (capacity - size) / 2;
+        int position = newHeadIndex;
+        for (int i = headIndex; i < tailIndex; i++) {
+            int id = order[i];
+            if (id >= 0) {
+                positions[id] = position;
+                newOrder[position] = id;
+                position++;
+            }
+        }
+        order = newOrder;
+        headIndex = newHeadIndex;
+        tailIndex = position;
+    }
+
+    private static int[] createOrder(int capacity) {
+        int[] result = new int[capacity];
+        Arrays.fill(result, -1);
+        return result;
+    }
+
+    /**
+     * Adds an edge, and restores the topological order if necessary (Pearce-Kelly).
+     *
+     * @return <code>false</code> if the edge would cause a cycle, otherwise <code>true</code>
+     */
+    private boolean addEdge(int dependencyId, int dependantId) {
+        if (positions[dependencyId] > positions[dependantId]) {
+            int epoch = nextVisitEpoch();
+            IntList forwardPositions = new IntList();
+            if (!searchForward(dependantId, dependencyId, epoch, forwardPositions)) {
+                return false;
+            }
+            IntList backwardPositions = new IntList();
+            searchBackward(dependencyId, positions[dependantId], epoch, backwardPositions);
+            reorder(backwardPositions, forwardPositions);
+        } else if (dependencyId == dependantId) {
+            return false;
+        }
+
+        addDependant(dependencyId, dependantId);
+        return true;
+    }
+
+    /**
+     * Collects positions of dependants of the given node positioned before the target
+     *
+     * @return <code>false</code> if the target was reached, otherwise <code>true</code>
+     */
+    private boolean searchForward(int startId, int targetId, int epoch, IntList collectedPositions) {
+        int upperBound = positions[targetId];
+        IntList stack = new IntList();
+        visitEpochs[startId] = epoch;
+        stack.add(startId);
+        while (!stack.isEmpty()) {
+            int id = stack.pop();
+            collectedPositions.add(positions[id]);
+            int[] dependantIds = dependants[id];
+            for (int i = 0; i < dependantCounts[id]; i++) {
+                int dependantId = dependantIds[i];
+                if (dependantId == targetId) {
+                    return false;
+                }
+                if (visitEpochs[dependantId] != epoch && positions[dependantId] < upperBound) {
+                    visitEpochs[dependantId] = epoch;
+                    stack.add(dependantId);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Collects positions of dependencies of the given node positioned after the lower bound
+     */
+    private void searchBackward(int startId, int lowerBound, int epoch, IntList collectedPositions) {
+        IntList stack = new IntList();
+        visitEpochs[startId] = epoch;
+        stack.add(startId);
+        while (!stack.isEmpty()) {
+            int id = stack.pop();
+            collectedPositions.add(positions[id]);
+            for (int dependencyId : dependencies[id]) {
+                if (visitEpochs[dependencyId] != epoch && positions[dependencyId] > lowerBound) {
+                    visitEpochs[dependencyId] = epoch;
+                    stack.add(dependencyId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves the backward nodes before the forward nodes, using their original positions
+     */
+    private void reorder(IntList backwardPositions, IntList forwardPositions) {
+        backwardPositions.sort();
+        forwardPositions.sort();
+        int backwardCount = backwardPositions.size();
+        int count = backwardCount + forwardPositions.size();
+        int[] reorderedIds = new int[count];
+        int[] newPositions = new int[count];
+        for (int i = 0; i < count; i++) {
+            int position = i < backwardCount ?
+                    backwardPositions.get(i) :
+                    forwardPositions.get(i - backwardCount);
+            reorderedIds[i] = order[position];
+            newPositions[i] = position;
+        }
+        Arrays.sort(newPositions);
+        for (int i = 0; i < count; i++) {
+            int id = reorderedIds[i];
+            positions[id] = newPositions[i];
+            order[newPositions[i]] = id;
+        }
+    }
+
+    private int nextVisitEpoch() {
+        visitEpoch++;
+        return visitEpoch;
+    }
+
+    private static int[] distinct(int[] ids) {
+        if (ids.length < 2) {
+            return ids;
+        }
+
+        int[] sortedIds = ids.clone();
+        Arrays.sort(sortedIds);
+        int count = 1;
+        for (int i = 1; i < sortedIds.length; i++) {
+            if (sortedIds[i] != sortedIds[count - 1]) {
+                sortedIds[count] = sortedIds[i];
+                count++;
+            }
+        }
+        return count == sortedIds.length ? sortedIds : Arrays.copyOf(sortedIds, count);
+    }
+
+    private int idOf(ResourceKey<?> key) {
+        int slot = findSlot(key);
+        return indexKeys[slot] == null ? -1 : indexIds[slot];
+    }
+
+    private void putIndex(ResourceKey<?> key, int id) {
+        if ((indexSize + 1) * 2 > indexKeys.length) {
+            resizeIndex(indexKeys.length * 2);
+        }
+        int slot = findSlot(key);
+        indexKeys[slot] = key;
+        indexIds[slot] = id;
+        indexSize++;
+    }
+
+    /**
+     * Removes a key from the index with backward shift deletion (linear probing)
+     */
+    private void removeIndex(ResourceKey<?> key) {
+        int slot = findSlot(key);
+        if (indexKeys[slot] == null) {
+            return;
+        }
+
+        indexKeys[slot] = null;
+        indexSize--;
+        int mask = indexKeys.length - 1;
+        int nextSlot = (slot + 1) & mask;
+        while (indexKeys[nextSlot] != null) {
+            int homeSlot = homeSlotOf(indexKeys[nextSlot], mask);
+            if (((nextSlot - homeSlot) & mask) >= ((nextSlot - slot) & mask)) {
+                indexKeys[slot] = indexKeys[nextSlot];
+                indexIds[slot] = indexIds[nextSlot];
+                indexKeys[nextSlot] = null;
+                slot = nextSlot;
+            }
+            nextSlot = (nextSlot + 1) & mask;
+        }
+    }
+
+    private int findSlot(ResourceKey<?> key) {
+        int mask = indexKeys.length - 1;
+        int slot = homeSlotOf(key, mask);
+        while (indexKeys[slot] != null && !indexKeys[slot].equals(key)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void resizeIndex(int capacity) {
+        ResourceKey<?>[] oldIndexKeys = indexKeys;
+        int[] oldIndexIds = indexIds;
+        indexKeys = new ResourceKey<?>[capacity];
+        indexIds = new int[capacity];
+        for (int i = 0; i < oldIndexKeys.length; i++) {
+            if (oldIndexKeys[i] != null) {
+                int slot = findSlot(oldIndexKeys[i]);
+                indexKeys[slot] = oldIndexKeys[i];
+                indexIds[slot] = oldIndexIds[i];
+            }
+        }
+    }
+
+    private static int homeSlotOf(ResourceKey<?> key, int mask) {
+        int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+
+    private static class IntList {
+
+        private int[] values = new int[8];
+
+        private int size = 0;
+
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size] = value;
+            size++;
+        }
+
+        int pop() {
+            size--;
+            return values[size];
+        }
+
+        int get(int index) {
+            return values[index];
+        }
+
+        int size() {
+            return size;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void sort() {
+            Arrays.sort(values, 0, size);
+        }
+
+    }
+
+}
@@ -0,0 +1,36 @@
+package hu.webarticum.resourcemanager.resource;
+
+/**
+ * {@link ResourceLease} implementation that does not prevent closing of the resource
+ *
+ * @param <T> Resource type
+ */
+class DetachedResourceLease<T> implements ResourceLease<T> {
+
+    private final ResourceKey<T> key;
+
+    private final T resource;
+
+
+    DetachedResourceLease(ResourceKey<T> key, T resource) {
+        this.key = key;
+        this.resource = resource;
+    }
+
+
+    @Override
+    public ResourceKey<T> getKey() {
+        return key;
+    }
+
+    @Override
+    public T get() {
+        return resource;
+    }
+
+    @Override
+    public void close() {
+        // nothing to release
+    }
+
+}
@@ -0,0 +1,36 @@
+package hu.webarticum.resourcemanager.resource;
+
+/**
+ * {@link ResourceHandle} implementation that looks up the resource on each access
+ *
+ * @param <T> Resource type
+ */
+class LookupResourceHandle<T> implements ResourceHandle<T> {
+
+    private final ResourceManager resourceManager;
+
+    private final ResourceKey<T> key;
+
+
+    LookupResourceHandle(ResourceManager resourceManager, ResourceKey<T> key) {
+        this.resourceManager = resourceManager;
+        this.key = key;
+    }
+
+
+    @Override
+    public ResourceKey<T> getKey() {
+        return key;
+    }
+
+    @Override
+    public T get() {
+        return resourceManager.get(key);
+    }
+
+    @Override
+    public T open() {
+        return resourceManager.open(key);
+    }
+
+}
@@ -0,0 +1,166 @@
+package hu.webarticum.resourcemanager.resource;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Descriptor of a resource to register (see {@link ResourceManager#registerAll(Collection)})
+ *
+ * @param <T> Resource type
+ */
+public class Registration<T> {
+
+    private final ResourceKey<T> key;
+
+    private final ResourceFactory<T> factory;
+
+    private final ResourceCloser<T> closer;
+
+    private final List<ResourceKey<?>> dependencies;
+
+
+    /**
+     * Creates a registration
+     *
+     * @param key The key
+     * @param factory The resource factory
+     * @param closer Custom closer code
+     * @param dependencies Optional dependencies
+     */
+    public Registration(
+            ResourceKey<T> key,
+            ResourceFactory<T> factory,
+            ResourceCloser<T> closer,
+            ResourceKey<?>... dependencies) {
+        
+        this(key, factory, closer, Arrays.asList(dependencies));
+    }
+
+    /**
+     * Creates a registration
+     *
+     * @param key The key
+     * @param factory The resource factory
+     * @param closer Custom closer code
+     * @param dependencies Dependencies
+     */
+    public Registration(
+            ResourceKey<T> key,
+            ResourceFactory<T> factory,
+            ResourceCloser<T> closer,
+            Collection<? extends ResourceKey<?>> dependencies) {
+        
+        this.key = key;
+        this.factory = factory;
+        this.closer = closer;
+        this.dependencies = Collections.unmodifiableList(new ArrayList<>(dependencies));
+    }
+
+    /**
+     * Creates a registration for an {@link AutoCloseable} resource
+     *
+     * @param key The key
+     * @param factory The resource factory
+     * @param dependencies Optional dependencies
+     * @return The registration
+     */
+    public static <T extends AutoCloseable> Registration<T> of(
+            ResourceKey<T> key,
+            ResourceFactory<T> factory,
+            ResourceKey<?>... dependencies) {
+        
+        return new Registration<>(key, factory, new AutoResourceCloser<>(), dependencies);
+    }
+
+    /**
+     * Creates a registration for an {@link AutoCloseable} resource
+     *
+     * @param key The key
+     * @param factory The resource factory
+     * @param dependencies Dependencies
+     * @return The registration
+     */
+    public static <T extends AutoCloseable> Registration<T> of(
+            ResourceKey<T> key,
+            ResourceFactory<T> factory,
+            Collection<? extends ResourceKey<?>> dependencies) {
+        
+        return new Registration<>(key, factory, new AutoResourceCloser<>(), dependencies);
+    }
+
+
+    /**
+     * Gets the key
+     *
+     * @return The key
+     */
+    public ResourceKey<T> getKey() {
+        return key;
+    }
+
+    /**
+     * Gets the resource factory
+     *
+     * @return The resource factory
+     */
+    public ResourceFactory<T> getFactory() {
+        return factory;
+    }
+
+    /**
+     * Gets the resource closer
+     *
+     * @return The resource closer
+     */
+    public ResourceCloser<T> getCloser() {
+        return closer;
+    }
+
+    /**
+     * Gets the dependencies
+     *
+     * @return The unmodifiable list of dependencies
+     */
+    public List<ResourceKey<?>> getDependencies() {
+        return dependencies;
+    }
+
+    void registerTo(ResourceManager resourceManager) {
+        resourceManager.register(key, factory, closer, dependencies);
+    }
+
+    /**
+     * Checks duplicated keys and missing dependencies of a batch
+     *
+     * @param registrations The registrations to check
+     * @param registeredChecker Checks if a key is already registered
+     * @throws DuplicateKeyException if any key is already registered or is duplicated in the batch
+     * @throws NoSuchElementException if any dependency is missing
+     */
+    static void validateBatch(
+            Collection<? extends Registration<?>> registrations,
+            Predicate<ResourceKey<?>> registeredChecker) {
+        
+        Set<ResourceKey<?>> batchKeys = new HashSet<>();
+        for (Registration<?> registration : registrations) {
+            if (registeredChecker.test(registration.key) || !batchKeys.add(registration.key)) {
+                throw new DuplicateKeyException(registration.key);
+            }
+        }
+        for (Registration<?> registration : registrations) {
+            for (ResourceKey<?> dependency : registration.dependencies) {
+                if (!batchKeys.contains(dependency) && !registeredChecker.test(dependency)) {
+                    throw new NoSuchElementException(String.format("Key not found: %s", dependency));
+                }
+            }
+        }
+    }
+
+}
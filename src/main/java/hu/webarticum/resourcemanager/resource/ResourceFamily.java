@@ -0,0 +1,362 @@
+package hu.webarticum.resourcemanager.resource;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Family of resources of the same kind, one member for each parameter (e. g. one for each tenant)
+ *
+ * Members are registered in the {@link ResourceManager} on demand,
+ * with keys derived from the family key and qualified by the parameter,
+ * and with the dependencies of the family.
+ * The number of members is bounded: when a new member would exceed the limit,
+ * a member not accessed recently is removed from the manager (and so closed).
+ * Recency is approximated by an access flag and a clock hand,
+ * so lookups of existing members are lock-free and eviction takes amortized constant time.
+ * Removed and evicted members are closed without holding the lock of the family or the manager,
+ * only a new member with the same parameter waits for it.
+ *
+ * @param <P> Parameter type
+ * @param <T> Resource type
+ */
+public class ResourceFamily<P, T> {
+
+    private final ResourceManager resourceManager;
+
+    private final ResourceKey<T> key;
+
+    private final ResourceFamilyFactory<P, T> factory;
+
+    private final ResourceCloser<T> closer;
+
+    private final List<ResourceKey<?>> dependencies;
+
+    private final int maxMembers;
+
+    private final Map<P, Member<P, T>> members = new ConcurrentHashMap<>();
+
+    private final Map<P, Member<P, T>> removingMembers = new HashMap<>();
+
+    private Iterator<Member<P, T>> clockHand = null;
+
+
+    /**
+     * Creates a resource family
+     *
+     * @param resourceManager The manager to register the members to
+     * @param key The family key, names of member keys are derived from its name
+     * @param factory The factory of the members
+     * @param closer Custom closer code of the members
+     * @param maxMembers Maximum number of members
+     * @param dependencies Optional dependencies of all the members
+     * @throws IllegalArgumentException if maxMembers is not positive
+     */
+    public ResourceFamily(
+            ResourceManager resourceManager,
+            ResourceKey<T> key,
+            ResourceFamilyFactory<P, T> factory,
+            ResourceCloser<T> closer,
+            int maxMembers,
+            ResourceKey<?>... dependencies) {
+        
+        this(resourceManager, key, factory, closer, maxMembers, Arrays.asList(dependencies));
+    }
+
+    /**
+     * Creates a resource family
+     *
+     * @param resourceManager The manager to register the members to
+     * @param key The family key, names of member keys are derived from its name
+     * @param factory The factory of the members
+     * @param closer Custom closer code of the members
+     * @param maxMembers Maximum number of members
+     * @param dependencies Dependencies of all the members
+     * @throws IllegalArgumentException if maxMembers is not positive
+     */
+    public ResourceFamily(
+            ResourceManager resourceManager,
+            ResourceKey<T> key,
+            ResourceFamilyFactory<P, T> factory,
+            ResourceCloser<T> closer,
+            int maxMembers,
+            Collection<? extends ResourceKey<?>> dependencies) {
+        
+        if (maxMembers <= 0) {
+            throw new IllegalArgumentException(String.format("Illegal member limit: %d", maxMembers));
+        }
+        
+        this.resourceManager = resourceManager;
+        this.key = key;
+        this.factory = factory;
+        this.closer = closer;
+        this.maxMembers = maxMembers;
+        this.dependencies = Collections.unmodifiableList(new ArrayList<>(dependencies));
+    }
+
+
+    /**
+     * Gets the family key
+     *
+     * @return The family key
+     */
+    public ResourceKey<T> getKey() {
+        return key;
+    }
+
+    /**
+     * Gets the maximum number of members
+     *
+     * @return The maximum number of members
+     */
+    public int getMaxMembers() {
+        return maxMembers;
+    }
+
+    /**
+     * Gets the current number of members
+     *
+     * @return The number of members
+     */
+    public int size() {
+        return members.size();
+    }
+
+    /**
+     * Checks if the member of the given parameter is registered
+     *
+     * @param parameter The parameter of the member
+     * @return <code>true</code> if the member is registered, <code>false</code> otherwise
+     */
+    public boolean containsMember(P parameter) {
+        return members.containsKey(parameter);
+    }
+
+    /**
+     * Gets the key of a member, registers the member if necessary
+     *
+     * @param parameter The parameter of the member
+     * @return The key of the member
+     * @throws ClosingFailedException if an evicted member failed to close
+     * @throws OpeningFailedException if interrupted while the previous member of the parameter was being removed
+     */
+    public ResourceKey<T> memberKey(P parameter) {
+        Member<P, T> member = members.get(parameter);
+        if (member == null) {
+            member = addMember(parameter);
+        }
+        if (!member.accessed) {
+            member.accessed = true;
+        }
+        return member.key;
+    }
+
+    /**
+     * Gets the open resource of a member
+     *
+     * @param parameter The parameter of the member
+     * @return The resource, or <code>null</code> if the member is not registered or not open
+     */
+    public T get(P parameter) {
+        Member<P, T> member = members.get(parameter);
+        if (member == null) {
+            return null;
+        }
+        if (!member.accessed) {
+            member.accessed = true;
+        }
+        return resourceManager.get(member.key);
+    }
+
+    /**
+     * Opens the resource of a member, registers the member if necessary
+     *
+     * @param parameter The parameter of the member
+     * @return The resource
+     * @throws OpeningFailedException if creating of the resource or any of its dependencies was failed
+     * @throws ClosingFailedException if an evicted member failed to close
+     */
+    public T open(P parameter) {
+        while (true) {
+            ResourceKey<T> memberKey = memberKey(parameter);
+            try {
+                return resourceManager.open(memberKey);
+            } catch (NoSuchElementException e) {
+                Member<P, T> member = members.get(parameter);
+                if (member != null && member.key == memberKey) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the member of the given parameter from the manager
+     *
+     * @param parameter The parameter of the member
+     * @throws ClosingFailedException if closing of the resource was failed
+     */
+    public void remove(P parameter) {
+        Member<P, T> member;
+        synchronized (this) {
+            member = members.remove(parameter);
+            if (member == null) {
+                return;
+            }
+            removingMembers.put(parameter, member);
+        }
+        removeFromManager(member);
+    }
+
+    private Member<P, T> addMember(P parameter) {
+        Member<P, T> member;
+        Member<P, T> evictedMember;
+        synchronized (this) {
+            awaitRemoval(parameter);
+            member = members.get(parameter);
+            if (member != null) {
+                return member;
+            }
+
+            evictedMember = members.size() >= maxMembers ? evictMember() : null;
+            ResourceKey<T> memberKey = new ResourceKey<>(key.getName(), key.getResourceType(), parameter);
+            Member<P, T> newMember = new Member<>(parameter, memberKey);
+            resourceManager.register(
+                    memberKey,
+                    (manager, k) -> factory.create(manager, parameter),
+                    (manager, k, resource) -> closeMemberResource(newMember, manager, resource),
+                    dependencies);
+            member = newMember;
+            members.put(parameter, member);
+        }
+        if (evictedMember != null) {
+            removeFromManager(evictedMember);
+        }
+        return member;
+    }
+
+    /**
+     * Waits until the previous member with the given parameter is removed from the manager
+     */
+    private void awaitRemoval(P parameter) {
+        while (removingMembers.containsKey(parameter)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new OpeningFailedException(key, e);
+            }
+        }
+    }
+
+    /**
+     * Takes out the next member which was not accessed since the clock hand passed it
+     *
+     * @return The evicted member, which is still to be removed from the manager
+     */
+    private Member<P, T> evictMember() {
+        int maxSteps = (members.size() * 2) + 1;
+        for (int i = 0; i < maxSteps; i++) {
+            if (clockHand == null || !clockHand.hasNext()) {
+                clockHand = members.values().iterator();
+                if (!clockHand.hasNext()) {
+                    return null;
+                }
+            }
+            Member<P, T> member = clockHand.next();
+            if (member.accessed) {
+                member.accessed = false;
+            } else {
+                members.remove(member.parameter, member);
+                removingMembers.put(member.parameter, member);
+                return member;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Closes the resource of a member, unless the member is being removed
+     */
+    private void closeMemberResource(Member<P, T> member, ResourceManager manager, T resource) throws Exception {
+        if (member.removing) {
+            member.removedResource = resource;
+        } else {
+            closer.close(manager, member.key, resource);
+        }
+    }
+
+    /**
+     * Removes a taken out member from the manager, without holding the lock of the family.
+     *
+     * The resource is closed after it was removed from the manager,
+     * so the closer runs without holding the lock of the manager.
+     * If the removal fails, the member is put back.
+     */
+    private void removeFromManager(Member<P, T> member) {
+        boolean removed = false;
+        member.removing = true;
+        try {
+            if (resourceManager.containsKey(member.key)) {
+                resourceManager.remove(member.key);
+            }
+            removed = true;
+            closeRemovedResource(member);
+        } finally {
+            if (!removed) {
+                member.removing = false;
+            }
+            finishRemoval(member, removed);
+        }
+    }
+
+    private void closeRemovedResource(Member<P, T> member) {
+        T resource = member.removedResource;
+        member.removedResource = null;
+        if (resource == null) {
+            return;
+        }
+        try {
+            closer.close(resourceManager, member.key, resource);
+        } catch (Exception e) {
+            throw new ClosingFailedException(member.key, e);
+        }
+    }
+
+    private synchronized void finishRemoval(Member<P, T> member, boolean removed) {
+        removingMembers.remove(member.parameter);
+        if (!removed) {
+            members.put(member.parameter, member);
+        }
+        notifyAll();
+    }
+
+
+    private static class Member<P, T> {
+
+        final P parameter;
+
+        final ResourceKey<T> key;
+
+        volatile boolean accessed = true;
+
+        volatile boolean removing = false;
+
+        volatile T removedResource = null;
+
+
+        Member(P parameter, ResourceKey<T> key) {
+            this.parameter = parameter;
+            this.key = key;
+        }
+
+    }
+
+}
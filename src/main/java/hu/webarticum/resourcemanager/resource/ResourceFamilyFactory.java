@@ -0,0 +1,22 @@
+package hu.webarticum.resourcemanager.resource;
+
+/**
+ * Functional interface for factory lambdas of resource families
+ *
+ * @param <P> Parameter type
+ * @param <T> Resource type
+ */
+public interface ResourceFamilyFactory<P, T> {
+
+    /**
+     * Creates a member resource for the given parameter
+     * 
+     * @param resourceManager The manager which stores the resource
+     * @param parameter The parameter of the member
+     * @throws Exception in any case when creating or opening was failed
+     */
+    public T create(
+            ResourceManager resourceManager, P parameter
+            ) throws Exception; // NOSONAR
+    
+}
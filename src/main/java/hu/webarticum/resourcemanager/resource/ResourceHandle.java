@@ -0,0 +1,47 @@
+package hu.webarticum.resourcemanager.resource;
+
+/**
+ * Handle of a registered resource for repeated access
+ *
+ * A handle can be obtained once via {@link ResourceManager#handle(ResourceKey)}
+ * and stored for later use.
+ * It follows closing and reopening of the resource,
+ * but it will not be attached to a new registration after removal of the key.
+ *
+ * @param <T> Resource type
+ */
+public interface ResourceHandle<T> {
+
+    /**
+     * Gets the key of the resource
+     *
+     * @return The key
+     */
+    public ResourceKey<T> getKey();
+
+    /**
+     * Gets the resource if it is open
+     *
+     * @return The resource or <code>null</code> if it is not open
+     */
+    public T get();
+
+    /**
+     * Returns with the open resource, opens it if necessary
+     *
+     * @return The open resource
+     * @throws java.util.NoSuchElementException if the key or any dependency is missing
+     * @throws OpeningFailedException if opening of this resource or any dependency was failed
+     */
+    public T open();
+
+    /**
+     * Checks if the resource is open
+     *
+     * @return <code>true</code> if the resource is open, <code>false</code> otherwise
+     */
+    public default boolean isOpen() {
+        return get() != null;
+    }
+
+}
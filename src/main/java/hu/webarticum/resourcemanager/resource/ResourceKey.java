@@ -1,21 +1,46 @@
 package hu.webarticum.resourcemanager.resource;
 
 import java.io.Serializable;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import hu.webarticum.resourcemanager.common.CastUtil;
 
 /**
  * Key for resources to store under
  *
+ * Canonical keys can be obtained via {@link #of(String, Class)}.
+ * Canonical keys are compared by identity,
+ * and they are retained for the lifetime of the class loader.
+ * Keys of family members (see {@link ResourceFamily}) are qualified by the member parameter.
+ * Keys of pools and thread scopes (see {@link ResourcePool#keyOf(ResourceKey)}
+ * and {@link ThreadScope#keyOf(ResourceKey)}) are qualified by the instance key.
+ *
  * @param <T> Resource type
  */
 public class ResourceKey<T> implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
+    private static final Map<ResourceKey<?>, ResourceKey<?>> canonicalKeys = new ConcurrentHashMap<>();
+
+    private static final AtomicInteger idCounter = new AtomicInteger();
+
 
     private final String name;
 
     private final Class<T> resourceType;
 
+    private final boolean canonical;
+
+    private final Object qualifier; // NOSONAR serializable if the member parameter is
+
+    private final transient int hash;
+
+    private final transient int id;
+
 
     /**
      * Constructs a key.
@@ -27,8 +52,46 @@ public class ResourceKey<T> implements Serializable {
      * @param resourceType Resource type
      */
     public ResourceKey(String name, Class<T> resourceType) {
+        this(name, resourceType, null, -1);
+    }
+
+    /**
+     * Constructs a qualified key, which is not equal to any key with a different qualifier.
+     *
+     * @param name Name of this key
+     * @param resourceType Resource type
+     * @param qualifier The qualifier
+     */
+    ResourceKey(String name, Class<T> resourceType, Object qualifier) {
+        this(name, resourceType, qualifier, -1);
+    }
+
+    private ResourceKey(String name, Class<T> resourceType, Object qualifier, int id) {
         this.name = name;
         this.resourceType = resourceType;
+        this.canonical = id >= 0;
+        this.qualifier = qualifier;
+        this.hash = (name.hashCode() * 31) + resourceType.hashCode() + Objects.hashCode(qualifier);
+        this.id = id;
+    }
+
+    /**
+     * Gets the canonical key for the given name and type.
+     *
+     * The same instance will be returned for equal names and types.
+     *
+     * @param name Name of the key
+     * @param resourceType Resource type
+     * @return The canonical key
+     */
+    public static <T> ResourceKey<T> of(String name, Class<T> resourceType) {
+        ResourceKey<T> lookupKey = new ResourceKey<>(name, resourceType);
+        ResourceKey<?> canonicalKey = canonicalKeys.get(lookupKey);
+        if (canonicalKey == null) {
+            canonicalKey = canonicalKeys.computeIfAbsent(
+                    lookupKey, k -> new ResourceKey<>(name, resourceType, null, idCounter.getAndIncrement()));
+        }
+        return CastUtil.cast(canonicalKey);
     }
 
 
@@ -50,21 +113,50 @@ public class ResourceKey<T> implements Serializable {
         return resourceType;
     }
 
+    /**
+     * Checks if this key was obtained via {@link #of(String, Class)}
+     *
+     * @return <code>true</code> if this is a canonical key, <code>false</code> otherwise
+     */
+    public boolean isCanonical() {
+        return canonical;
+    }
+
+    /**
+     * Gets the dense id of this key
+     *
+     * Ids of canonical keys are allocated sequentially from zero.
+     *
+     * @return The id of this key, or -1 if this is not a canonical key
+     */
+    public int getId() {
+        return id;
+    }
+
     /**
      * Checks if this key is equal to the given object.
      *
      * If <code>obj</code> is not a {@link ResourceKey}, then returns with false.
-     * Thwo key are equal, iff their names and types are both equal.
+     * Thwo key are equal, iff their names, types and qualifiers are all equal.
      *
      * @return <code>true</code> if equals, <code>false</code> otherwise
      */
     @Override
     public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
         if (!(obj instanceof ResourceKey)) {
             return false;
         }
         ResourceKey<?> otherKey = (ResourceKey<?>) obj;
-        return name.equals(otherKey.name) && resourceType == otherKey.resourceType;
+        if ((canonical && otherKey.canonical) || hash != otherKey.hash) {
+            return false;
+        }
+        return
+                name.equals(otherKey.name) &&
+                resourceType == otherKey.resourceType &&
+                Objects.equals(qualifier, otherKey.qualifier);
     }
 
     /**
@@ -74,19 +166,32 @@ public class ResourceKey<T> implements Serializable {
      */
     @Override
     public int hashCode() {
-        return (name.hashCode() * 31) + resourceType.hashCode();
+        return hash;
     }
 
     /**
      * Generates string representation for this key.
      *
-     * Format of the string is: &lt;name&gt; ":" &lt;type&gt; .
+     * Format of the string is: &lt;name&gt; ":" &lt;type&gt; ,
+     * or &lt;name&gt; "[" &lt;qualifier&gt; "]:" &lt;type&gt; for qualified keys.
      *
      * @return The string representation
      */
     @Override
     public String toString() {
+        if (qualifier != null) {
+            return String.format("%s[%s]:%s", name, qualifier, resourceType.getName());
+        }
         return String.format("%s:%s", name, resourceType.getName());
     }
 
+    /**
+     * Restores the cached hash, and the identity of canonical keys after deserialization
+     *
+     * @return The restored key
+     */
+    protected Object readResolve() {
+        return canonical ? of(name, resourceType) : new ResourceKey<>(name, resourceType, qualifier);
+    }
+
 }
\ No newline at end of file
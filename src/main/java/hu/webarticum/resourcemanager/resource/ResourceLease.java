@@ -0,0 +1,40 @@
+package hu.webarticum.resourcemanager.resource;
+
+/**
+ * Lease of an open resource (see {@link ResourceManager#acquire(ResourceKey)})
+ *
+ * The resource will not be closed by the manager until the lease is released,
+ * or until the drain timeout of the manager expires.
+ * Use it with try-with-resources.
+ *
+ * @param <T> Resource type
+ */
+public interface ResourceLease<T> extends AutoCloseable {
+
+    /**
+     * Gets the key of the leased resource
+     *
+     * @return The key
+     */
+    public ResourceKey<T> getKey();
+
+    /**
+     * Gets the leased resource
+     *
+     * @return The resource
+     */
+    public T get();
+
+    /**
+     * Releases this lease.
+     *
+     * Releasing an already released lease has no effect.
+     * If closing of the resource is pending on this lease,
+     * it may be closed by this call.
+     *
+     * @throws ClosingFailedException if the pending closing of the resource failed
+     */
+    @Override
+    public void close();
+
+}
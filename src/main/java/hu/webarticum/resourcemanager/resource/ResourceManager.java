@@ -1,9 +1,18 @@
 package hu.webarticum.resourcemanager.resource;
 
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Interface for storages of openable and closeable resources with basic dependency handling.
@@ -85,6 +94,93 @@ public interface ResourceManager {
             ResourceCloser<T> closer,
             Collection<? extends ResourceKey<?>> dependencies);
 
+    /**
+     * Registers multiple resources atomically.
+     *
+     * The whole batch is validated before registration:
+     * each dependency must be already registered or be part of the batch.
+     * If any validation fails, no resource will be registered.
+     *
+     * @param registrations The registrations
+     * @throws DuplicateKeyException if any key is already registered or is duplicated in the batch
+     * @throws NoSuchElementException if any dependency is missing
+     * @throws CyclicDependencyException is dependency cycle is detected
+     */
+    default void registerAll(Collection<? extends Registration<?>> registrations) {
+        Registration.validateBatch(registrations, this::containsKey);
+
+        List<ResourceKey<?>> registeredKeys = new ArrayList<>();
+        try {
+            for (Registration<?> registration : registrations) {
+                registration.registerTo(this);
+                registeredKeys.add(registration.getKey());
+            }
+        } catch (RuntimeException e) {
+            for (int i = registeredKeys.size() - 1; i >= 0; i--) {
+                remove(registeredKeys.get(i));
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Registers a pool of instances (see {@link ResourcePool}).
+     *
+     * The pool is registered under the key {@link ResourcePool#keyOf(ResourceKey)}.
+     * Instances can be borrowed via {@link #borrow(ResourceKey)}.
+     *
+     * @param key The key of the instances
+     * @param factory The factory of the instances
+     * @param closer Custom closer code of the instances
+     * @param minSize Number of instances to create on opening of the pool
+     * @param maxSize Maximum number of instances
+     * @param dependencies Optional dependencies
+     * @throws IllegalArgumentException if the sizes are illegal
+     * @throws CyclicDependencyException is dependency cycle is detected
+     */
+    default <T> void registerPool(
+            ResourceKey<T> key,
+            ResourceFactory<T> factory,
+            ResourceCloser<T> closer,
+            int minSize,
+            int maxSize,
+            ResourceKey<?>... dependencies) {
+        
+        if (minSize < 0 || maxSize <= 0 || minSize > maxSize) {
+            throw new IllegalArgumentException(String.format("Illegal pool sizes: %d, %d", minSize, maxSize));
+        }
+        register(
+                ResourcePool.keyOf(key),
+                (manager, poolKey) -> new ResourcePool<>(manager, key, factory, closer, minSize, maxSize),
+                new AutoResourceCloser<>(),
+                Arrays.asList(dependencies));
+    }
+
+    /**
+     * Registers a thread-scoped resource (see {@link ThreadScope}).
+     *
+     * The scope is registered under the key {@link ThreadScope#keyOf(ResourceKey)}.
+     * Instances bound to the calling thread can be accessed via {@link #threadHandle(ResourceKey)}.
+     *
+     * @param key The key of the instances
+     * @param factory The factory of the instances
+     * @param closer Custom closer code of the instances
+     * @param dependencies Optional dependencies
+     * @throws CyclicDependencyException is dependency cycle is detected
+     */
+    default <T> void registerThreadScoped(
+            ResourceKey<T> key,
+            ResourceFactory<T> factory,
+            ResourceCloser<T> closer,
+            ResourceKey<?>... dependencies) {
+        
+        register(
+                ThreadScope.keyOf(key),
+                (manager, scopeKey) -> new ThreadScope<>(manager, key, factory, closer),
+                new AutoResourceCloser<>(),
+                Arrays.asList(dependencies));
+    }
+
     /**
      * Checks if this manager is empty
      *
@@ -125,6 +221,71 @@ public interface ResourceManager {
      */
     <T> T get(ResourceKey<T> key);
 
+    /**
+     * Gets a handle for repeated access of the resource with the specified key
+     *
+     * @param key The key
+     * @return The handle
+     * @throws NoSuchElementException if <code>key</code> is missing
+     */
+    default <T> ResourceHandle<T> handle(ResourceKey<T> key) {
+        if (!containsKey(key)) {
+            throw new NoSuchElementException(String.format("Key not found: %s", key));
+        }
+        return new LookupResourceHandle<>(this, key);
+    }
+
+    /**
+     * Gets a handle for the instances of a thread-scoped resource
+     * (see {@link #registerThreadScoped(ResourceKey, ResourceFactory, ResourceCloser, ResourceKey...)}).
+     *
+     * Methods of the handle access the instance bound to the calling thread.
+     * Opening via the handle opens the scope if necessary.
+     *
+     * @param key The key of the instances
+     * @return The handle
+     * @throws NoSuchElementException if no scope was registered for <code>key</code>
+     */
+    default <T> ResourceHandle<T> threadHandle(ResourceKey<T> key) {
+        return new ThreadScopeHandle<>(this, key, handle(ThreadScope.keyOf(key)));
+    }
+
+    /**
+     * Opens the resource if necessary, and leases it.
+     *
+     * Implementations may delay closing of the resource until the lease is released.
+     * By default, the lease does not prevent closing.
+     *
+     * @param key The key
+     * @return The lease of the open resource
+     * @throws NoSuchElementException if <code>key</code> or any dependency is missing
+     * @throws OpeningFailedException if opening of this resource or any dependency was failed
+     */
+    default <T> ResourceLease<T> acquire(ResourceKey<T> key) {
+        return new DetachedResourceLease<>(key, open(key));
+    }
+
+    /**
+     * Borrows an instance from a pool (see {@link #registerPool(ResourceKey, ResourceFactory, ResourceCloser, int, int, ResourceKey...)}).
+     *
+     * Opens the pool if necessary, and waits if all the instances are borrowed.
+     * The pool is leased until the instance is returned by closing the returned lease.
+     *
+     * @param key The key of the instances
+     * @return The lease of the borrowed instance
+     * @throws NoSuchElementException if no pool was registered for <code>key</code> or any dependency is missing
+     * @throws OpeningFailedException if opening of the pool or any dependency, or creating of the instance was failed
+     */
+    default <T> ResourceLease<T> borrow(ResourceKey<T> key) {
+        ResourceLease<ResourcePool<T>> poolLease = acquire(ResourcePool.keyOf(key));
+        try {
+            return poolLease.get().borrow(poolLease);
+        } catch (RuntimeException e) {
+            poolLease.close();
+            throw e;
+        }
+    }
+
     /**
      * Returns with open resource with the specified key.
      *
@@ -138,6 +299,113 @@ public interface ResourceManager {
      */
     <T> T open(ResourceKey<T> key);
 
+    /**
+     * Returns with open resource with the specified key,
+     * opening independent dependencies in parallel.
+     *
+     * Resources will be opened on the given executor,
+     * each one as soon as all of its dependencies are open.
+     * Blocks until the resource is open.
+     * By default, resources are opened on the calling thread (see {@link #open(ResourceKey)}).
+     *
+     * @param key The key
+     * @param executor The executor to run factories on
+     * @throws NoSuchElementException if <code>key</code> or any dependency is missing
+     * @throws OpeningFailedException if opening of this resource or any dependency was failed
+     * @return The open resource
+     */
+    default <T> T open(ResourceKey<T> key, Executor executor) {
+        return open(key);
+    }
+
+    /**
+     * Returns with open resource with the specified key, waits no longer than the given timeout.
+     *
+     * The timeout applies to the whole opening, including dependencies.
+     * By default, the resource is opened asynchronously (see {@link #openAsync(ResourceKey)}),
+     * and the opening continues in the background after the timeout.
+     *
+     * @param key The key
+     * @param timeout The maximum time to wait
+     * @throws NoSuchElementException if <code>key</code> or any dependency is missing
+     * @throws OpeningFailedException if opening of this resource or any dependency was failed,
+     *         or the timeout expired (with a {@link TimeoutException} cause)
+     * @return The open resource
+     */
+    default <T> T open(ResourceKey<T> key, Duration timeout) {
+        CompletableFuture<T> future = openAsync(key);
+        try {
+            return future.get(timeout.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            throw new OpeningFailedException(key, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OpeningFailedException(key, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new OpeningFailedException(key, e);
+        }
+    }
+
+    /**
+     * Opens the resource with the specified key asynchronously.
+     *
+     * See {@link #openAsync(ResourceKey, Executor)}.
+     * By default, {@link ForkJoinPool#commonPool()} will be used.
+     *
+     * @param key The key
+     * @return Future of the open resource
+     */
+    default <T> CompletableFuture<T> openAsync(ResourceKey<T> key) {
+        return openAsync(key, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Opens the resource with the specified key asynchronously on the given executor.
+     *
+     * The returned future completes with the open resource,
+     * or exceptionally with the same exceptions {@link #open(ResourceKey)} throws.
+     * The calling thread will not be blocked by any factory.
+     *
+     * @param key The key
+     * @param executor The executor to run factories on
+     * @return Future of the open resource
+     */
+    default <T> CompletableFuture<T> openAsync(ResourceKey<T> key, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> open(key), executor);
+    }
+
+    /**
+     * Replaces the open resource and its open dependants with new instances.
+     *
+     * If the resource is not open, no operation will be performed.
+     * By default, the resource will be closed,
+     * and the previously open resources will be reopened.
+     *
+     * @param key The key
+     * @throws NoSuchElementException if <code>key</code> is missing
+     * @throws ClosingFailedException if closing of any old instance was failed
+     * @throws OpeningFailedException if opening of any new instance was failed
+     */
+    default void refresh(ResourceKey<?> key) {
+        if (!isOpen(key)) {
+            return;
+        }
+
+        Set<ResourceKey<?>> openKeys = openKeySet();
+        close(key);
+        for (ResourceKey<?> openKey : openKeys) {
+            if (!isOpen(openKey)) {
+                open(openKey);
+            }
+        }
+    }
+
     /**
      * Closes resource under the specified key.
      *
@@ -169,6 +437,33 @@ public interface ResourceManager {
      */
     void close(ResourceKey<?> key, boolean aggressive);
 
+    /**
+     * Closes resource under the specified key asynchronously.
+     *
+     * See {@link #closeAsync(ResourceKey, Executor)}.
+     * By default, {@link ForkJoinPool#commonPool()} will be used.
+     *
+     * @param key The key
+     * @return Future of the closing
+     */
+    default CompletableFuture<Void> closeAsync(ResourceKey<?> key) {
+        return closeAsync(key, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Closes resource under the specified key asynchronously on the given executor.
+     *
+     * The returned future completes exceptionally
+     * with the same exceptions {@link #close(ResourceKey)} throws.
+     *
+     * @param key The key
+     * @param executor The executor to run closers on
+     * @return Future of the closing
+     */
+    default CompletableFuture<Void> closeAsync(ResourceKey<?> key, Executor executor) {
+        return CompletableFuture.runAsync(() -> close(key), executor);
+    }
+
     /**
      * Closes all resources in this manager.
      *
@@ -188,6 +483,52 @@ public interface ResourceManager {
      */
     void closeAll(boolean aggressive);
 
+    /**
+     * Closes all resources in this manager in parallel.
+     *
+     * Resources are closed in waves on the given executor:
+     * a resource will be closed after all of its dependants were processed.
+     * Each closer is given the specified timeout measured from the start of its wave.
+     * After that, the resource is reported as unclosed, and closing continues,
+     * but implementations may keep its dependencies open (reported as unclosed, too),
+     * as the closer may still use them.
+     * This is aggressive (see {@link #close(ResourceKey, boolean)}),
+     * all failures will be reported in a single exception.
+     * By default, resources are closed on the calling thread without timeout.
+     *
+     * @throws ClosingFailedException if closing of any resource was failed or timed out
+     * @param executor The executor to run closers on
+     * @param timeout Timeout for each closer
+     */
+    default void closeAll(Executor executor, Duration timeout) {
+        closeAll(true);
+    }
+
+    /**
+     * Closes all resources in this manager asynchronously.
+     *
+     * See {@link #closeAllAsync(Executor)}.
+     * By default, {@link ForkJoinPool#commonPool()} will be used.
+     *
+     * @return Future of the closing
+     */
+    default CompletableFuture<Void> closeAllAsync() {
+        return closeAllAsync(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Closes all resources in this manager asynchronously on the given executor.
+     *
+     * The returned future completes exceptionally
+     * with the same exceptions {@link #closeAll()} throws.
+     *
+     * @param executor The executor to run closers on
+     * @return Future of the closing
+     */
+    default CompletableFuture<Void> closeAllAsync(Executor executor) {
+        return CompletableFuture.runAsync(this::closeAll, executor);
+    }
+
     /**
      * Closes and removes resource at the specified key.
      *
@@ -264,4 +605,13 @@ public interface ResourceManager {
      */
     Set<ResourceKey<?>> closedKeySet(); // NOSONAR
 
+    /**
+     * Gets an immutable snapshot of the keys and open states
+     *
+     * @return The snapshot
+     */
+    default ResourceSnapshot snapshot() {
+        return ResourceSnapshot.of(keySet(), openKeySet());
+    }
+
 }
\ No newline at end of file
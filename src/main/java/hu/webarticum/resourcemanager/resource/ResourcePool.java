@@ -0,0 +1,304 @@
+package hu.webarticum.resourcemanager.resource;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import hu.webarticum.resourcemanager.common.CastUtil;
+
+/**
+ * Pool of interchangeable instances of a resource which is not thread-safe
+ *
+ * The pool itself is a resource in the {@link ResourceManager} (see {@link #keyOf(ResourceKey)}),
+ * so it takes part in the dependency graph:
+ * closing any dependency closes the pool and all of its instances.
+ * Instances are created on demand by the factory, up to the maximum size.
+ * When all the instances are borrowed, borrowers wait for a return.
+ * Borrowing via {@link ResourceManager#borrow(ResourceKey)} also leases the pool,
+ * so closing of the pool waits for the borrowed instances to be returned,
+ * if the manager supports leases.
+ *
+ * @param <T> Resource type
+ */
+public class ResourcePool<T> implements AutoCloseable {
+
+    private final ResourceManager resourceManager;
+
+    private final ResourceKey<T> key;
+
+    private final ResourceFactory<T> factory;
+
+    private final ResourceCloser<T> closer;
+
+    private final int maxSize;
+
+    private final Deque<T> idleInstances = new ArrayDeque<>();
+
+    private int size = 0;
+
+    private boolean closed = false;
+
+
+    /**
+     * Creates a pool, and creates the minimum number of instances
+     *
+     * @param resourceManager The manager which stores the pool
+     * @param key The key of the instances
+     * @param factory The factory of the instances
+     * @param closer Custom closer code of the instances
+     * @param minSize Number of instances to create eagerly
+     * @param maxSize Maximum number of instances
+     * @throws IllegalArgumentException if the sizes are illegal
+     * @throws OpeningFailedException if creating of any instance failed
+     */
+    public ResourcePool(
+            ResourceManager resourceManager,
+            ResourceKey<T> key,
+            ResourceFactory<T> factory,
+            ResourceCloser<T> closer,
+            int minSize,
+            int maxSize) {
+        
+        if (minSize < 0 || maxSize <= 0 || minSize > maxSize) {
+            throw new IllegalArgumentException(String.format("Illegal pool sizes: %d, %d", minSize, maxSize));
+        }
+        
+        this.resourceManager = resourceManager;
+        this.key = key;
+        this.factory = factory;
+        this.closer = closer;
+        this.maxSize = maxSize;
+        
+        try {
+            for (int i = 0; i < minSize; i++) {
+                idleInstances.add(createInstance());
+                size++;
+            }
+        } catch (OpeningFailedException e) {
+            closeIdleInstances(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the key of the pool which stores instances with the given key
+     *
+     * The pool key is qualified by the whole instance key,
+     * so pools of instances with the same name and different types do not collide.
+     *
+     * @param key The key of the instances
+     * @return The key of the pool
+     */
+    public static <T> ResourceKey<ResourcePool<T>> keyOf(ResourceKey<T> key) {
+        return CastUtil.cast(new ResourceKey<>(key.getName(), ResourcePool.class, key));
+    }
+
+
+    /**
+     * Gets the key of the instances
+     *
+     * @return The key of the instances
+     */
+    public ResourceKey<T> getKey() {
+        return key;
+    }
+
+    /**
+     * Gets the maximum number of instances
+     *
+     * @return The maximum number of instances
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Gets the number of instances
+     *
+     * @return The number of created and not yet closed instances
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Gets the number of instances not borrowed
+     *
+     * @return The number of idle instances
+     */
+    public synchronized int countIdle() {
+        return idleInstances.size();
+    }
+
+    /**
+     * Borrows an instance, waits if all the instances are borrowed.
+     *
+     * Closing the returned lease gives back the instance.
+     *
+     * @return The lease of the borrowed instance
+     * @throws OpeningFailedException if the pool is closed, or creating of a new instance failed
+     */
+    public ResourceLease<T> borrow() {
+        return borrow(null);
+    }
+
+    ResourceLease<T> borrow(ResourceLease<?> poolLease) {
+        T instance = takeIdleInstance();
+        if (instance == null) {
+            try {
+                instance = createInstance();
+            } catch (OpeningFailedException e) {
+                cancelReservation();
+                throw e;
+            }
+        }
+        return new Borrowed(instance, poolLease);
+    }
+
+    /**
+     * Takes an idle instance, or reserves place for a new one
+     *
+     * @return The idle instance, or <code>null</code> if a new one must be created
+     */
+    private synchronized T takeIdleInstance() {
+        while (true) {
+            if (closed) {
+                throw new OpeningFailedException(key, new IllegalStateException("Pool is closed"));
+            } else if (!idleInstances.isEmpty()) {
+                return idleInstances.pollLast();
+            } else if (size < maxSize) {
+                size++;
+                return null;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new OpeningFailedException(key, e);
+            }
+        }
+    }
+
+    private synchronized void cancelReservation() {
+        size--;
+        notifyAll();
+    }
+
+    private T createInstance() {
+        try {
+            return factory.create(resourceManager, key);
+        } catch (Exception e) {
+            throw new OpeningFailedException(key, e);
+        }
+    }
+
+    private void giveBack(T instance) {
+        if (!offerIdleInstance(instance)) {
+            closeInstance(instance);
+        }
+    }
+
+    private synchronized boolean offerIdleInstance(T instance) {
+        notifyAll();
+        if (closed) {
+            size--;
+            return false;
+        }
+        idleInstances.addLast(instance);
+        return true;
+    }
+
+    /**
+     * Closes the pool and its idle instances.
+     *
+     * Instances borrowed at the moment will be closed when they are returned.
+     *
+     * @throws ClosingFailedException if closing of any instance failed
+     */
+    @Override
+    public void close() {
+        closeIdleInstances(null);
+    }
+
+    private void closeIdleInstances(RuntimeException failure) {
+        List<T> instancesToClose;
+        synchronized (this) {
+            closed = true;
+            instancesToClose = new ArrayList<>(idleInstances);
+            idleInstances.clear();
+            size -= instancesToClose.size();
+            notifyAll();
+        }
+        
+        ClosingFailedException exception = null;
+        for (T instance : instancesToClose) {
+            try {
+                closeInstance(instance);
+            } catch (ClosingFailedException e) {
+                if (failure != null) {
+                    failure.addSuppressed(e);
+                } else if (exception == null) {
+                    exception = e;
+                } else {
+                    exception.addSuppressed(e);
+                }
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    private void closeInstance(T instance) {
+        try {
+            closer.close(resourceManager, key, instance);
+        } catch (Exception e) {
+            throw new ClosingFailedException(key, e);
+        }
+    }
+
+
+    private class Borrowed implements ResourceLease<T> {
+
+        private final T instance;
+
+        private final ResourceLease<?> poolLease;
+
+        private final AtomicBoolean returned = new AtomicBoolean(false);
+
+
+        Borrowed(T instance, ResourceLease<?> poolLease) {
+            this.instance = instance;
+            this.poolLease = poolLease;
+        }
+
+
+        @Override
+        public ResourceKey<T> getKey() {
+            return key;
+        }
+
+        @Override
+        public T get() {
+            return instance;
+        }
+
+        @Override
+        public void close() {
+            if (!returned.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                giveBack(instance);
+            } finally {
+                if (poolLease != null) {
+                    poolLease.close();
+                }
+            }
+        }
+
+    }
+
+}
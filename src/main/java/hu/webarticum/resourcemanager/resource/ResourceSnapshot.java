@@ -0,0 +1,229 @@
+package hu.webarticum.resourcemanager.resource;
+
+import java.util.AbstractSet;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Immutable snapshot of the keys and open states of a {@link ResourceManager}
+ *
+ * Key sets of the snapshot are unmodifiable views, they are not copied on access.
+ * Snapshots taken between two registry modifications share their key table,
+ * only the open states are stored separately.
+ * Iteration order of the key sets is unspecified.
+ */
+public final class ResourceSnapshot {
+
+    private final KeyTable keyTable;
+
+    private final BitSet openIds;
+
+    private final int openCount;
+
+
+    ResourceSnapshot(KeyTable keyTable, BitSet openIds, int openCount) {
+        this.keyTable = keyTable;
+        this.openIds = openIds;
+        this.openCount = openCount;
+    }
+
+    /**
+     * Creates a snapshot from key collections
+     *
+     * @param keys All the keys
+     * @param openKeys Keys of open resources
+     * @return The snapshot
+     */
+    static ResourceSnapshot of(Collection<ResourceKey<?>> keys, Collection<ResourceKey<?>> openKeys) {
+        ResourceKey<?>[] keysById = keys.toArray(new ResourceKey<?>[keys.size()]);
+        KeyTable keyTable = new KeyTable(keysById);
+        BitSet openIds = new BitSet(keysById.length);
+        for (ResourceKey<?> openKey : openKeys) {
+            openIds.set(keyTable.idsByKey.get(openKey));
+        }
+        return new ResourceSnapshot(keyTable, openIds, openIds.cardinality());
+    }
+
+
+    /**
+     * Checks if there was no resource
+     *
+     * @return <code>true</code> if there was no resource, <code>false</code> otherwise
+     */
+    public boolean isEmpty() {
+        return keyTable.size == 0;
+    }
+
+    /**
+     * Gets the number of resources
+     *
+     * @return The number of resources
+     */
+    public int size() {
+        return keyTable.size;
+    }
+
+    /**
+     * Checks if the given key was registered
+     *
+     * @param key The key to check
+     * @return <code>true</code> if the key was registered, <code>false</code> otherwise
+     */
+    public boolean containsKey(ResourceKey<?> key) {
+        return keyTable.idsByKey.containsKey(key);
+    }
+
+    /**
+     * Checks if the resource with the given key was open
+     *
+     * @param key The key to check
+     * @return <code>true</code> if the resource was open, <code>false</code> otherwise
+     * @throws NoSuchElementException if key was not registered
+     */
+    public boolean isOpen(ResourceKey<?> key) {
+        Integer id = keyTable.idsByKey.get(key);
+        if (id == null) {
+            throw new NoSuchElementException(String.format("Key not found: %s", key));
+        }
+        return openIds.get(id);
+    }
+
+    /**
+     * Checks if there was any open resource
+     *
+     * @return <code>true</code> if any open resource found, <code>false</code> otherwise
+     */
+    public boolean hasOpen() {
+        return openCount > 0;
+    }
+
+    /**
+     * Gets the number of open resources
+     *
+     * @return The number of open resources
+     */
+    public int countOpen() {
+        return openCount;
+    }
+
+    /**
+     * Gets the set of all keys
+     *
+     * @return Unmodifiable view of the keys
+     */
+    public Set<ResourceKey<?>> keySet() { // NOSONAR
+        return new KeySetView(keyTable.usedIds, keyTable.size);
+    }
+
+    /**
+     * Gets the set of keys of open resources
+     *
+     * @return Unmodifiable view of the open keys
+     */
+    public Set<ResourceKey<?>> openKeySet() { // NOSONAR
+        return new KeySetView(openIds, openCount);
+    }
+
+    /**
+     * Gets the set of keys of closed resources
+     *
+     * @return Unmodifiable view of the closed keys
+     */
+    public Set<ResourceKey<?>> closedKeySet() { // NOSONAR
+        BitSet closedIds = (BitSet) keyTable.usedIds.clone();
+        closedIds.andNot(openIds);
+        return new KeySetView(closedIds, keyTable.size - openCount);
+    }
+
+
+    /**
+     * Shared part of snapshots, keys are indexed by entry ids
+     */
+    static final class KeyTable {
+
+        private final ResourceKey<?>[] keysById;
+
+        private final Map<ResourceKey<?>, Integer> idsByKey;
+
+        private final BitSet usedIds;
+
+        private final int size;
+
+
+        /**
+         * Creates a key table
+         *
+         * @param keysById Keys indexed by their ids, <code>null</code> for unused ids
+         */
+        KeyTable(ResourceKey<?>[] keysById) {
+            this.keysById = keysById;
+            this.idsByKey = new HashMap<>();
+            this.usedIds = new BitSet(keysById.length);
+            for (int id = 0; id < keysById.length; id++) {
+                if (keysById[id] != null) {
+                    idsByKey.put(keysById[id], id);
+                    usedIds.set(id);
+                }
+            }
+            this.size = idsByKey.size();
+        }
+
+    }
+
+
+    private class KeySetView extends AbstractSet<ResourceKey<?>> {
+
+        private final BitSet ids;
+
+        private final int size;
+
+
+        KeySetView(BitSet ids, int size) {
+            this.ids = ids;
+            this.size = size;
+        }
+
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public boolean contains(Object key) {
+            Integer id = keyTable.idsByKey.get(key);
+            return id != null && ids.get(id);
+        }
+
+        @Override
+        public Iterator<ResourceKey<?>> iterator() {
+            return new Iterator<ResourceKey<?>>() {
+
+                private int nextId = ids.nextSetBit(0);
+
+                @Override
+                public boolean hasNext() {
+                    return nextId >= 0;
+                }
+
+                @Override
+                public ResourceKey<?> next() {
+                    if (nextId < 0) {
+                        throw new NoSuchElementException();
+                    }
+                    ResourceKey<?> key = keyTable.keysById[nextId];
+                    nextId = ids.nextSetBit(nextId + 1);
+                    return key;
+                }
+
+            };
+        }
+
+    }
+
+}
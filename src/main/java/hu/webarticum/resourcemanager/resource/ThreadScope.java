@@ -0,0 +1,262 @@
+package hu.webarticum.resourcemanager.resource;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import hu.webarticum.resourcemanager.common.CastUtil;
+
+/**
+ * Holder of thread-bound instances of a resource which is not thread-safe
+ *
+ * The scope itself is a resource in the {@link ResourceManager} (see {@link #keyOf(ResourceKey)}),
+ * so it takes part in the dependency graph:
+ * closing any dependency closes the scope and all the instances created by it.
+ * Each thread gets its own instance, created lazily by the factory.
+ * Instances of terminated threads are closed when a new instance is created,
+ * failures of closing them are reported when the scope is closed.
+ * Instances are accessed via {@link ResourceManager#threadHandle(ResourceKey)}.
+ *
+ * @param <T> Resource type
+ */
+public class ThreadScope<T> implements AutoCloseable {
+
+    private final ResourceManager resourceManager;
+
+    private final ResourceKey<T> key;
+
+    private final ResourceFactory<T> factory;
+
+    private final ResourceCloser<T> closer;
+
+    private final ThreadLocal<T> threadInstances = new ThreadLocal<>();
+
+    private final List<Bound<T>> boundInstances = new ArrayList<>();
+
+    private ClosingFailedException pendingFailure = null;
+
+    private volatile boolean closed = false;
+
+
+    /**
+     * Creates an empty scope
+     *
+     * @param resourceManager The manager which stores the scope
+     * @param key The key of the instances
+     * @param factory The factory of the instances
+     * @param closer Custom closer code of the instances
+     */
+    public ThreadScope(
+            ResourceManager resourceManager,
+            ResourceKey<T> key,
+            ResourceFactory<T> factory,
+            ResourceCloser<T> closer) {
+        
+        this.resourceManager = resourceManager;
+        this.key = key;
+        this.factory = factory;
+        this.closer = closer;
+    }
+
+    /**
+     * Gets the key of the scope which stores instances with the given key
+     *
+     * The scope key is qualified by the whole instance key,
+     * so scopes of instances with the same name and different types do not collide.
+     *
+     * @param key The key of the instances
+     * @return The key of the scope
+     */
+    public static <T> ResourceKey<ThreadScope<T>> keyOf(ResourceKey<T> key) {
+        return CastUtil.cast(new ResourceKey<>(key.getName(), ThreadScope.class, key));
+    }
+
+
+    /**
+     * Gets the key of the instances
+     *
+     * @return The key of the instances
+     */
+    public ResourceKey<T> getKey() {
+        return key;
+    }
+
+    /**
+     * Gets the number of instances
+     *
+     * @return The number of created and not yet closed instances
+     */
+    public synchronized int size() {
+        return boundInstances.size();
+    }
+
+    /**
+     * Gets the instance of the current thread
+     *
+     * @return The instance, or <code>null</code> if not created yet or the scope is closed
+     */
+    public T get() {
+        if (closed) {
+            return null;
+        }
+        return threadInstances.get();
+    }
+
+    /**
+     * Gets the instance of the current thread, creates it if necessary
+     *
+     * @return The instance of the current thread
+     * @throws IllegalStateException if the scope is closed
+     * @throws OpeningFailedException if creating of the instance failed
+     */
+    public T open() {
+        T instance = get();
+        if (instance != null) {
+            return instance;
+        }
+        
+        instance = tryOpen();
+        if (instance == null) {
+            throw new IllegalStateException(String.format("Scope is closed: %s", key));
+        }
+        return instance;
+    }
+
+    /**
+     * Gets the instance of the current thread, creates it if necessary
+     *
+     * @return The instance of the current thread, or <code>null</code> if the scope is closed
+     * @throws OpeningFailedException if creating of the instance failed
+     */
+    T tryOpen() {
+        T instance = get();
+        if (instance != null || closed) {
+            return instance;
+        }
+
+        try {
+            instance = factory.create(resourceManager, key);
+        } catch (Exception e) {
+            throw new OpeningFailedException(key, e);
+        }
+        List<T> instancesToClose = new ArrayList<>();
+        boolean bound = bind(instance, instancesToClose);
+        if (!bound) {
+            instancesToClose.add(instance);
+            throwIfNotNull(closeAll(instancesToClose, null));
+            return null;
+        }
+
+        threadInstances.set(instance);
+        ClosingFailedException failure = closeAll(instancesToClose, null);
+        if (failure != null) {
+            addPendingFailure(failure);
+        }
+        return instance;
+    }
+
+    /**
+     * Binds the new instance to the current thread, and unbinds instances of terminated threads
+     *
+     * @param instance The new instance
+     * @param instancesToClose Unbound instances will be added to this list
+     * @return <code>true</code> if the instance was bound, <code>false</code> if the scope is closed
+     */
+    private synchronized boolean bind(T instance, List<T> instancesToClose) {
+        if (closed) {
+            return false;
+        }
+        
+
+        Iterator<Bound<T>> iterator = boundInstances.iterator();
+        while (iterator.hasNext()) {
+            Bound<T> bound = iterator.next();
+            Thread thread = bound.thread.get();
+            if (thread == null || !thread.isAlive()) {
+                instancesToClose.add(bound.instance);
+                iterator.remove();
+            }
+        }
+        boundInstances.add(new Bound<>(Thread.currentThread(), instance));
+        return true;
+    }
+
+    private synchronized void addPendingFailure(ClosingFailedException failure) {
+        if (closed) {
+            // the scope was closed meanwhile, the failure has nowhere to go
+            return;
+        }
+        if (pendingFailure == null) {
+            pendingFailure = failure;
+        } else {
+            pendingFailure.addSuppressed(failure);
+        }
+    }
+
+    /**
+     * Closes the scope and all of its instances, including ones in use by other threads
+     *
+     * @throws ClosingFailedException if closing of any instance failed,
+     *         including earlier failures of closing instances of terminated threads
+     */
+    @Override
+    public void close() {
+        List<T> instancesToClose = new ArrayList<>();
+        ClosingFailedException failure;
+        synchronized (this) {
+            closed = true;
+            for (Bound<T> bound : boundInstances) {
+                instancesToClose.add(bound.instance);
+            }
+            boundInstances.clear();
+            failure = pendingFailure;
+            pendingFailure = null;
+        }
+        throwIfNotNull(closeAll(instancesToClose, failure));
+    }
+
+    private void throwIfNotNull(ClosingFailedException exception) {
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    /**
+     * Closes the given instances
+     *
+     * @return The failure, or <code>null</code> if all the instances were closed
+     */
+    private ClosingFailedException closeAll(List<T> instancesToClose, ClosingFailedException previousFailure) {
+        ClosingFailedException exception = previousFailure;
+        for (T instance : instancesToClose) {
+            try {
+                closer.close(resourceManager, key, instance);
+            } catch (Exception e) {
+                ClosingFailedException closingFailedException = new ClosingFailedException(key, e);
+                if (exception == null) {
+                    exception = closingFailedException;
+                } else {
+                    exception.addSuppressed(closingFailedException);
+                }
+            }
+        }
+        return exception;
+    }
+
+
+    private static class Bound<T> {
+
+        final WeakReference<Thread> thread;
+
+        final T instance;
+
+
+        Bound(Thread thread, T instance) {
+            this.thread = new WeakReference<>(thread);
+            this.instance = instance;
+        }
+
+    }
+
+}
@@ -0,0 +1,62 @@
+package hu.webarticum.resourcemanager.resource;
+
+/**
+ * {@link ResourceHandle} implementation that accesses the instance of the current thread in a {@link ThreadScope}
+ *
+ * @param <T> Resource type
+ */
+class ThreadScopeHandle<T> implements ResourceHandle<T> {
+
+    private final ResourceManager resourceManager;
+
+    private final ResourceKey<T> key;
+
+    private final ResourceHandle<ThreadScope<T>> scopeHandle;
+
+
+    ThreadScopeHandle(ResourceManager resourceManager, ResourceKey<T> key, ResourceHandle<ThreadScope<T>> scopeHandle) {
+        this.resourceManager = resourceManager;
+        this.key = key;
+        this.scopeHandle = scopeHandle;
+    }
+
+
+    @Override
+    public ResourceKey<T> getKey() {
+        return key;
+    }
+
+    @Override
+    public T get() {
+        ThreadScope<T> scope = scopeHandle.get();
+        return scope != null ? scope.get() : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * If the scope was closed directly instead of via the manager,
+     * the scope is closed via the manager, and reopened.
+     *
+     * @throws IllegalStateException if the reopened scope is closed too
+     */
+    @Override
+    public T open() {
+        ThreadScope<T> closedScope = null;
+        while (true) {
+            ThreadScope<T> scope = scopeHandle.open();
+            T instance = scope.tryOpen();
+            if (instance != null) {
+                return instance;
+            } else if (scope == closedScope) {
+                throw new IllegalStateException(String.format("Scope is closed: %s", scopeHandle.getKey()));
+            }
+
+            closedScope = scope;
+            if (scopeHandle.get() == scope) {
+                resourceManager.close(scopeHandle.getKey());
+            }
+        }
+    }
+
+}
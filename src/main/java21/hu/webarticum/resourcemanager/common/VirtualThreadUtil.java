@@ -0,0 +1,37 @@
+package hu.webarticum.resourcemanager.common;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Utilities for running blocking tasks on virtual threads.
+ *
+ * This is the Java 21 variant of this class.
+ */
+public final class VirtualThreadUtil {
+
+    private VirtualThreadUtil() {
+        // preventing instantiation
+    }
+
+
+    /**
+     * Checks if virtual threads are available on the current platform.
+     *
+     * @return <code>true</code> if virtual threads are available, <code>false</code> otherwise
+     */
+    public static boolean isAvailable() {
+        return true;
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for each task.
+     *
+     * @return The executor
+     */
+    public static Executor newExecutor() {
+        ThreadFactory threadFactory = Thread.ofVirtual().name("resource-manager-", 0).factory();
+        return task -> threadFactory.newThread(task).start();
+    }
+
+}
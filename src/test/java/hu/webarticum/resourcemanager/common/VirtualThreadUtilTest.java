@@ -0,0 +1,40 @@
+package hu.webarticum.resourcemanager.common;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class VirtualThreadUtilTest {
+
+    // set by the Java 21 test run of the multi-release jar
+    private static final boolean VIRTUAL_THREADS_EXPECTED = Boolean.getBoolean("resourcemanager.test.virtualThreads");
+
+
+    @Test
+    void testIsAvailable() {
+        assertThat(VirtualThreadUtil.isAvailable()).isEqualTo(VIRTUAL_THREADS_EXPECTED);
+    }
+
+    @Test
+    void testNewExecutor() throws Exception {
+        if (!VIRTUAL_THREADS_EXPECTED) {
+            assertThatThrownBy(VirtualThreadUtil::newExecutor).isInstanceOf(UnsupportedOperationException.class);
+            return;
+        }
+
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        VirtualThreadUtil.newExecutor().execute(() -> {
+            try {
+                future.complete(Thread.class.getMethod("isVirtual").invoke(Thread.currentThread()));
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        });
+        assertThat(future.get(5, TimeUnit.SECONDS)).isEqualTo(true);
+    }
+
+}
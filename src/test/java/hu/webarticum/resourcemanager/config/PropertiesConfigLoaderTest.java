@@ -14,6 +14,7 @@ import java.util.Map;
 import org.junit.jupiter.api.Test;
 
 import hu.webarticum.resourcemanager.common.PropertiesUtil;
+import hu.webarticum.resourcemanager.resource.ClosingFailedException;
 import hu.webarticum.resourcemanager.resource.DefaultResourceManager;
 import hu.webarticum.resourcemanager.resource.OpeningFailedException;
 import hu.webarticum.resourcemanager.resource.ResourceKey;
@@ -114,6 +115,63 @@ class PropertiesConfigLoaderTest {
         assertThat(resourceManager.open(BOOLEAN_KEY)).isTrue();
     }
 
+    @Test
+    void testChangeRefreshesDependants() throws IOException {
+        List<PropertiesConfigItemDefinition<?>> definitions = Arrays.asList(
+                new SimpleConfigItemDefinition<>(
+                        BIG_INTEGER_KEY, "number", ValueParsers.BIG_INTEGER));
+        Map<String, String> data = new HashMap<>();
+        data.put("number", "5");
+        List<PropertiesSupplier> suppliers = Arrays.asList(() -> data);
+        ResourceManager resourceManager = new DefaultResourceManager();
+        PropertiesConfigLoader configLoader = new PropertiesConfigLoader(
+                resourceManager, definitions, suppliers);
+        ResourceKey<String> dependantKey = new ResourceKey<>("dependant", String.class);
+        resourceManager.register(
+                dependantKey, (manager, key) -> "value: " + manager.open(BIG_INTEGER_KEY),
+                (manager, key, value) -> {}, BIG_INTEGER_KEY);
+
+        configLoader.reload();
+        resourceManager.open(dependantKey);
+        data.put("number", "7");
+        configLoader.reload();
+
+        assertThat(resourceManager.isOpen(dependantKey)).as("dependant is open").isTrue();
+        assertThat(resourceManager.get(dependantKey)).as("dependant").isEqualTo("value: 7");
+    }
+
+    @Test
+    void testChangeRefreshesAllDespiteClosingFailure() throws IOException {
+        List<PropertiesConfigItemDefinition<?>> definitions = Arrays.asList(
+                new SimpleConfigItemDefinition<>(
+                        BIG_INTEGER_KEY, "number", ValueParsers.BIG_INTEGER),
+                new SimpleConfigItemDefinition<>(
+                        BOOLEAN_KEY, "switch", ValueParsers.BOOLEAN));
+        Map<String, String> data = new HashMap<>();
+        data.put("number", "5");
+        data.put("switch", "off");
+        List<PropertiesSupplier> suppliers = Arrays.asList(() -> data);
+        ResourceManager resourceManager = new DefaultResourceManager();
+        PropertiesConfigLoader configLoader = new PropertiesConfigLoader(
+                resourceManager, definitions, suppliers);
+        ResourceKey<String> dependantKey = new ResourceKey<>("dependant", String.class);
+        resourceManager.register(
+                dependantKey, (manager, key) -> "value: " + manager.open(BIG_INTEGER_KEY),
+                (manager, key, value) -> {
+                    throw new IllegalStateException("Failing closer");
+                }, BIG_INTEGER_KEY);
+
+        configLoader.reload();
+        resourceManager.open(dependantKey);
+        resourceManager.open(BOOLEAN_KEY);
+        data.put("number", "7");
+        data.put("switch", "on");
+
+        assertThatThrownBy(() -> configLoader.reload()).isInstanceOf(ClosingFailedException.class);
+        assertThat(resourceManager.get(dependantKey)).as("dependant").isEqualTo("value: 7");
+        assertThat(resourceManager.get(BOOLEAN_KEY)).as("switch").isTrue();
+    }
+
     @Test
     void testOverride() throws IOException {
         List<PropertiesConfigItemDefinition<?>> definitions = Arrays.asList(
@@ -0,0 +1,1007 @@
+package hu.webarticum.resourcemanager.resource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+class DefaultResourceManagerTest {
+
+    private static final ResourceKey<StringBuilder> FOO_KEY = ResourceKey.of("foo", StringBuilder.class);
+
+    private static final ResourceKey<StringBuilder> BAR_KEY = ResourceKey.of("bar", StringBuilder.class);
+
+    private static final ResourceKey<StringBuilder> BAZ_KEY = ResourceKey.of("baz", StringBuilder.class);
+
+
+    @Test
+    void testReadsDoNotWaitForLock() throws Exception {
+        DefaultResourceManager resourceManager = new DefaultResourceManager();
+        resourceManager.register(FOO_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close);
+        resourceManager.register(BAR_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close);
+        StringBuilder foo = resourceManager.open(FOO_KEY);
+
+        synchronized (resourceManager) {
+            CompletableFuture<Boolean> future = CompletableFuture.supplyAsync(() ->
+                    resourceManager.get(FOO_KEY) == foo &&
+                    resourceManager.open(FOO_KEY) == foo &&
+                    resourceManager.isOpen(FOO_KEY) &&
+                    !resourceManager.isOpen(BAR_KEY) &&
+                    resourceManager.containsKey(BAR_KEY) &&
+                    resourceManager.size() == 2 &&
+                    resourceManager.hasOpen() &&
+                    resourceManager.countOpen() == 1);
+
+            assertThat(future.get(5, TimeUnit.SECONDS)).as("lock-free reads").isTrue();
+        }
+    }
+
+    @Test
+    void testOpenStateTrackingAfterRemove() {
+        DefaultResourceManager resourceManager = new DefaultResourceManager();
+        resourceManager.register(FOO_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close);
+        resourceManager.register(BAR_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close);
+        resourceManager.open(FOO_KEY);
+        resourceManager.open(BAR_KEY);
+        resourceManager.remove(FOO_KEY);
+        resourceManager.register(BAZ_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close);
+        resourceManager.register(FOO_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close);
+
+        assertThat(resourceManager.countOpen()).as("open count").isEqualTo(1);
+        assertThat(resourceManager.openKeySet()).as("open keys").containsExactly(BAR_KEY);
+        assertThat(resourceManager.closedKeySet()).as("closed keys").containsExactlyInAnyOrder(BAZ_KEY, FOO_KEY);
+
+        resourceManager.open(BAZ_KEY);
+        resourceManager.closeAll();
+
+        assertThat(resourceManager.hasOpen()).as("has open").isFalse();
+        assertThat(resourceManager.closedKeySet()).as("closed keys").containsExactlyInAnyOrder(
+                FOO_KEY, BAR_KEY, BAZ_KEY);
+    }
+
+    @Test
+    void testSnapshotIsCachedAndLockFree() throws Exception {
+        DefaultResourceManager resourceManager = new DefaultResourceManager();
+        resourceManager.register(FOO_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close);
+        resourceManager.register(BAR_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close);
+        resourceManager.open(FOO_KEY);
+        ResourceSnapshot snapshot = resourceManager.snapshot();
+
+        synchronized (resourceManager) {
+            CompletableFuture<ResourceSnapshot> future = CompletableFuture.supplyAsync(resourceManager::snapshot);
+
+            assertThat(future.get(5, TimeUnit.SECONDS)).as("cached snapshot").isSameAs(snapshot);
+        }
+
+        resourceManager.open(BAR_KEY);
+
+        assertThat(resourceManager.snapshot()).as("new snapshot").isNotSameAs(snapshot);
+        assertThat(resourceManager.snapshot().openKeySet()).as("open keys").containsExactlyInAnyOrder(FOO_KEY, BAR_KEY);
+        assertThat(snapshot.openKeySet()).as("old open keys").containsExactly(FOO_KEY);
+        assertThatThrownBy(() -> snapshot.keySet().remove(FOO_KEY)).as("unmodifiable")
+                .isInstanceOf(UnsupportedOperationException.class);
+    }
+
+    @Test
+    void testHandleIsDetachedAfterRemove() {
+        DefaultResourceManager resourceManager = new DefaultResourceManager();
+        resourceManager.register(FOO_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close);
+        ResourceHandle<StringBuilder> handle = resourceManager.handle(FOO_KEY);
+        handle.open();
+        resourceManager.remove(FOO_KEY);
+        resourceManager.register(FOO_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close);
+        resourceManager.open(FOO_KEY);
+
+        assertThat(handle.get()).as("removed").isNull();
+        assertThatThrownBy(handle::open).as("open removed").isInstanceOf(NoSuchElementException.class);
+        assertThat(resourceManager.handle(FOO_KEY).get()).as("new handle").isSameAs(resourceManager.get(FOO_KEY));
+    }
+
+    @Test
+    void testSingleFlightOpening() throws Exception {
+        DefaultResourceManager resourceManager = new DefaultResourceManager();
+        CountDownLatch startedLatch = new CountDownLatch(1);
+        CountDownLatch releaseLatch = new CountDownLatch(1);
+        AtomicInteger creationCount = new AtomicInteger();
+        resourceManager.register(FOO_KEY, (manager, key) -> {
+            creationCount.incrementAndGet();
+            startedLatch.countDown();
+            releaseLatch.await();
+            return create(manager, key);
+        }, DefaultResourceManagerTest::close);
+
+        CompletableFuture<StringBuilder> future1 = CompletableFuture.supplyAsync(() -> resourceManager.open(FOO_KEY));
+        startedLatch.await(5, TimeUnit.SECONDS);
+        CompletableFuture<StringBuilder> future2 = CompletableFuture.supplyAsync(() -> resourceManager.open(FOO_KEY));
+        releaseLatch.countDown();
+
+        assertThat(future1.get(5, TimeUnit.SECONDS)).as("same instance").isSameAs(future2.get(5, TimeUnit.SECONDS));
+        assertThat(creationCount.get()).as("creation count").isEqualTo(1);
+    }
+
+    @Test
+    void testSlowFactoryDoesNotBlockOthers() throws Exception {
+        DefaultResourceManager resourceManager = new DefaultResourceManager();
+        CountDownLatch startedLatch = new CountDownLatch(1);
+        CountDownLatch releaseLatch = new CountDownLatch(1);
+        resourceManager.register(FOO_KEY, (manager, key) -> {
+            startedLatch.countDown();
+            releaseLatch.await();
+            return create(manager, key);
+        }, DefaultResourceManagerTest::close);
+        resourceManager.register(BAR_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close);
+
+        CompletableFuture<StringBuilder> fooFuture = CompletableFuture.supplyAsync(() -> resourceManager.open(FOO_KEY));
+        startedLatch.await(5, TimeUnit.SECONDS);
+        CompletableFuture<StringBuilder> barFuture = CompletableFuture.supplyAsync(() -> resourceManager.open(BAR_KEY));
+
+        assertThat(barFuture.get(5, TimeUnit.SECONDS)).as("bar").isNotNull();
+        assertThat(resourceManager.isOpen(FOO_KEY)).as("foo is open").isFalse();
+
+        releaseLatch.countDown();
+
+        assertThat(fooFuture.get(5, TimeUnit.SECONDS)).as("foo").isNotNull();
+    }
+
+    @Test
+    void testFactoryReturningNull() {
+        DefaultResourceManager resourceManager = new DefaultResourceManager();
+        AtomicInteger createCount = new AtomicInteger();
+        resourceManager.register(FOO_KEY, (manager, key) -> {
+            createCount.incrementAndGet();
+            return null;
+        }, DefaultResourceManagerTest::close);
+
+        assertThatThrownBy(() -> resourceManager.open(FOO_KEY)).as("open")
+                .isInstanceOf(OpeningFailedException.class)
+                .hasCauseInstanceOf(IllegalStateException.class);
+        assertThat(createCount.get()).as("create count").isEqualTo(1);
+        assertThat(resourceManager.isOpen(FOO_KEY)).as("foo is open").isFalse();
+    }
+
+    @Test
+    void testOpeningDeadlockDetection() throws Exception {
+        DefaultResourceManager resourceManager = new DefaultResourceManager();
+        CountDownLatch fooLatch = new CountDownLatch(1);
+        CountDownLatch barLatch = new CountDownLatch(1);
+        resourceManager.register(FOO_KEY, (manager, key) -> {
+            fooLatch.countDown();
+            barLatch.await();
+            manager.open(BAR_KEY);
+            return create(manager, key);
+        }, DefaultResourceManagerTest::close);
+        resourceManager.register(BAR_KEY, (manager, key) -> {
+            barLatch.countDown();
+            fooLatch.await();
+            manager.open(FOO_KEY);
+            return create(manager, key);
+        }, DefaultResourceManagerTest::close);
+
+        CompletableFuture<Throwable> fooFuture = CompletableFuture.supplyAsync(() -> openForFailure(resourceManager, FOO_KEY));
+        CompletableFuture<Throwable> barFuture = CompletableFuture.supplyAsync(() -> openForFailure(resourceManager, BAR_KEY));
+        Throwable fooFailure = fooFuture.get(5, TimeUnit.SECONDS);
+        Throwable barFailure = barFuture.get(5, TimeUnit.SECONDS);
+
+        assertThat(fooFailure).as("foo failure").isInstanceOf(OpeningFailedException.class);
+        assertThat(barFailure).as("bar failure").isInstanceOf(OpeningFailedException.class);
+        assertThat(hasCyclicCause(fooFailure) || hasCyclicCause(barFailure)).as("deadlock detected").isTrue();
+        assertThat(resourceManager.hasOpen()).as("has open").isFalse();
+    }
+
+    @Test
+    void testParallelOpening() throws Exception {
+        DefaultResourceManager resourceManager = new DefaultResourceManager();
+        CyclicBarrier barrier = new CyclicBarrier(2);
+        ResourceFactory<StringBuilder> barrierFactory = (manager, key) -> {
+            barrier.await(5, TimeUnit.SECONDS);
+            return create(manager, key);
+        };
+        resourceManager.register(FOO_KEY, barrierFactory, DefaultResourceManagerTest::close);
+        resourceManager.register(BAR_KEY, barrierFactory, DefaultResourceManagerTest::close);
+        resourceManager.register(BAZ_KEY, (manager, key) -> {
+            assertThat(manager.isOpen(FOO_KEY)).as("foo is open").isTrue();
+            assertThat(manager.isOpen(BAR_KEY)).as("bar is open").isTrue();
+            return create(manager, key);
+        }, DefaultResourceManagerTest::close, FOO_KEY, BAR_KEY);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try {
+            assertThat(resourceManager.open(BAZ_KEY, executorService)).as("baz").isNotNull();
+        } finally {
+            executorService.shutdown();
+        }
+        assertThat(resourceManager.countOpen()).as("open count").isEqualTo(3);
+    }
+
+    @Test
+    void testParallelOpeningFailure() {
+        DefaultResourceManager resourceManager = new DefaultResourceManager();
+        resourceManager.register(FOO_KEY, (manager, key) -> {
+            throw new IllegalStateException("Unopenable");
+        }, DefaultResourceManagerTest::close);
+        resourceManager.register(BAR_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close, FOO_KEY);
+
+        assertThatThrownBy(() -> resourceManager.open(BAR_KEY, Runnable::run)).as("opening failure")
+                .isInstanceOf(OpeningFailedException.class)
+                .extracting(e -> ((OpeningFailedException) e).getKey()).as("failed key")
+                .isEqualTo(FOO_KEY);
+        assertThat(resourceManager.hasOpen()).as("has open").isFalse();
+    }
+
+    @Test
+    void testOpenAsyncDoesNotBlock() throws Exception {
+        ExecutorService executorService = Executors.newCachedThreadPool();
+        DefaultResourceManager resourceManager = new DefaultResourceManager("Resources", executorService);
+        CountDownLatch releaseLatch = new CountDownLatch(1);
+        resourceManager.register(FOO_KEY, (manager, key) -> {
+            releaseLatch.await();
+            return create(manager, key);
+        }, DefaultResourceManagerTest::close);
+        resourceManager.register(BAR_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close, FOO_KEY);
+
+        try {
+            CompletableFuture<StringBuilder> future = resourceManager.openAsync(BAR_KEY);
+
+            assertThat(future.isDone()).as("done before release").isFalse();
+
+            releaseLatch.countDown();
+
+            assertThat(future.get(5, TimeUnit.SECONDS)).as("bar").isSameAs(resourceManager.get(BAR_KEY));
+            assertThat(resourceManager.openAsync(BAR_KEY).isDone()).as("done when open").isTrue();
+        } finally {
+            releaseLatch.countDown();
+            executorService.shutdown();
+        }
+    }
+
+    @Test
+    void testOpenAsyncDoesNotWaitForRunningCloser() throws Exception {
+        ExecutorService executorService = Executors.newCachedThreadPool();
+        DefaultResourceManager resourceManager = new DefaultResourceManager("Resources", executorService);
+        CountDownLatch closingLatch = new CountDownLatch(1);
+        CountDownLatch releaseLatch = new CountDownLatch(1);
+        resourceManager.register(FOO_KEY, DefaultResourceManagerTest::create, (manager, key, resource) -> {
+            closingLatch.countDown();
+            releaseLatch.await();
+        });
+        resourceManager.register(BAR_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close);
+        resourceManager.open(FOO_KEY);
+
+        try {
+            CompletableFuture<Void> closeFuture = CompletableFuture.runAsync(
+                    () -> resourceManager.close(FOO_KEY), executorService);
+            assertThat(closingLatch.await(5, TimeUnit.SECONDS)).as("closing started").isTrue();
+
+            CompletableFuture<StringBuilder> future = CompletableFuture.supplyAsync(
+                    () -> resourceManager.openAsync(BAR_KEY), executorService).get(5, TimeUnit.SECONDS);
+
+            assertThat(future.isDone()).as("done while closing").isFalse();
+
+            releaseLatch.countDown();
+
+            assertThat(future.get(5, TimeUnit.SECONDS)).as("bar").isSameAs(resourceManager.get(BAR_KEY));
+            closeFuture.get(5, TimeUnit.SECONDS);
+        } finally {
+            releaseLatch.countDown();
+            executorService.shutdown();
+        }
+    }
+
+    @Test
+    void testWithVirtualThreads() throws Exception {
+        DefaultResourceManager resourceManager = DefaultResourceManager.withVirtualThreads("Virtual");
+        resourceManager.register(FOO_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close);
+        resourceManager.register(BAR_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close, FOO_KEY);
+
+        assertThat(resourceManager.openAsync(BAR_KEY).get(5, TimeUnit.SECONDS)).as("bar").isNotNull();
+
+        resourceManager.closeAll(resourceManager.getAsyncExecutor(), Duration.ofSeconds(5));
+
+        assertThat(resourceManager.hasOpen()).as("has open").isFalse();
+    }
+
+    @Test
+    void testParallelCloseAll() {
+        DefaultResourceManager resourceManager = new DefaultResourceManager();
+        CyclicBarrier barrier = new CyclicBarrier(2);
+        List<ResourceKey<?>> closingOrder = Collections.synchronizedList(new ArrayList<>());
+        ResourceCloser<StringBuilder> barrierCloser = (manager, key, value) -> {
+            barrier.await(5, TimeUnit.SECONDS);
+            closingOrder.add(key);
+        };
+        resourceManager.register(FOO_KEY, DefaultResourceManagerTest::create, (manager, key, value) -> {
+            closingOrder.add(key);
+        });
+        resourceManager.register(BAR_KEY, DefaultResourceManagerTest::create, barrierCloser, FOO_KEY);
+        resourceManager.register(BAZ_KEY, DefaultResourceManagerTest::create, barrierCloser, FOO_KEY);
+        resourceManager.open(BAR_KEY);
+        resourceManager.open(BAZ_KEY);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try {
+            resourceManager.closeAll(executorService, Duration.ofSeconds(10));
+        } finally {
+            executorService.shutdown();
+        }
+        assertThat(resourceManager.hasOpen()).as("has open").isFalse();
+        assertThat(closingOrder).as("closing order").containsSubsequence(BAR_KEY, FOO_KEY);
+        assertThat(closingOrder).as("closing order").containsSubsequence(BAZ_KEY, FOO_KEY);
+    }
+
+    @Test
+    void testParallelCloseAllTimeout() throws Exception {
+        DefaultResourceManager resourceManager = new DefaultResourceManager();
+        CountDownLatch releaseLatch = new CountDownLatch(1);
+        resourceManager.register(FOO_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close);
+        resourceManager.register(BAR_KEY, DefaultResourceManagerTest::create, (manager, key, value) -> {
+            releaseLatch.await();
+        }, FOO_KEY);
+        resourceManager.register(BAZ_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close);
+        resourceManager.open(BAR_KEY);
+        resourceManager.open(BAZ_KEY);
+
+        ExecutorService executorService = Executors.newCachedThreadPool();
+        try {
+            assertThatThrownBy(() -> resourceManager.closeAll(executorService, Duration.ofMillis(100)))
+                    .as("closing failure")
+                    .isInstanceOf(ClosingFailedException.class)
+                    .hasCauseInstanceOf(TimeoutException.class)
+                    .extracting(e -> ((ClosingFailedException) e.getSuppressed()[0]).getKey()).as("kept open")
+                    .isEqualTo(FOO_KEY);
+            assertThat(resourceManager.openKeySet()).as("open keys").containsExactlyInAnyOrder(FOO_KEY, BAR_KEY);
+            assertThat(resourceManager.get(FOO_KEY).toString()).as("foo kept for the running closer")
+                    .isEqualTo("foo");
+
+            releaseLatch.countDown();
+
+            assertThat(resourceManager.open(BAR_KEY)).as("reopened bar").isNotNull();
+        } finally {
+            releaseLatch.countDown();
+            executorService.shutdown();
+        }
+    }
+
+    @Test
+    void testFrozen() {
+        DefaultResourceManager resourceManager = new DefaultResourceManager();
+        List<ResourceKey<?>> closingOrder = new ArrayList<>();
+        ResourceCloser<StringBuilder> closer = (manager, key, value) -> closingOrder.add(key);
+        resourceManager.register(BAZ_KEY, DefaultResourceManagerTest::create, closer, BAR_KEY);
+        resourceManager.register(FOO_KEY, DefaultResourceManagerTest::create, closer);
+        resourceManager.register(BAR_KEY, DefaultResourceManagerTest::create, closer, FOO_KEY);
+        resourceManager.freeze();
+        resourceManager.open(BAZ_KEY);
+
+        assertThat(resourceManager.isFrozen()).as("frozen").isTrue();
+        assertThat(resourceManager.openKeySet()).as("open keys").containsExactlyInAnyOrder(FOO_KEY, BAR_KEY, BAZ_KEY);
+
+        resourceManager.close(FOO_KEY);
+
+        assertThat(closingOrder).as("closing order").containsExactly(BAZ_KEY, BAR_KEY, FOO_KEY);
+
+        resourceManager.open(BAR_KEY);
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try {
+            resourceManager.closeAll(executorService, Duration.ofSeconds(10));
+        } finally {
+            executorService.shutdown();
+        }
+
+        assertThat(resourceManager.hasOpen()).as("has open").isFalse();
+        assertThat(closingOrder).as("closing order").containsExactly(BAZ_KEY, BAR_KEY, FOO_KEY, BAR_KEY, FOO_KEY);
+        assertThatThrownBy(() -> resourceManager.register(
+                ResourceKey.of("other", StringBuilder.class), DefaultResourceManagerTest::create, closer))
+                .as("register").isInstanceOf(IllegalStateException.class);
+        assertThatThrownBy(() -> resourceManager.remove(FOO_KEY)).as("remove")
+                .isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void testFreezeWithMissingDependency() {
+        DefaultResourceManager resourceManager = new DefaultResourceManager();
+        resourceManager.register(BAR_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close, FOO_KEY);
+
+        assertThatThrownBy(resourceManager::freeze).as("missing dependency")
+                .isInstanceOf(NoSuchElementException.class);
+        assertThat(resourceManager.isFrozen()).as("frozen").isFalse();
+    }
+
+    @Test
+    void testCloseWaitsForLease() throws Exception {
+        DefaultResourceManager resourceManager = new DefaultResourceManager();
+        AtomicInteger closeCount = new AtomicInteger();
+        resourceManager.register(FOO_KEY, DefaultResourceManagerTest::create, (manager, key, value) -> {
+            closeCount.incrementAndGet();
+        });
+        resourceManager.register(BAR_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close, FOO_KEY);
+        ResourceLease<StringBuilder> lease = resourceManager.acquire(FOO_KEY);
+
+        FutureTask<Void> closeTask = runUntilBlocked(() -> {
+            resourceManager.close(FOO_KEY);
+            return null;
+        });
+
+        assertThat(closeTask.isDone()).as("close is done").isFalse();
+        assertThat(closeCount.get()).as("close count").isZero();
+        assertThat(resourceManager.isOpen(FOO_KEY)).as("foo is open").isTrue();
+        assertThat(resourceManager.openAsync(BAR_KEY).isDone()).as("dependant opened").isFalse();
+
+        lease.close();
+        closeTask.get(5, TimeUnit.SECONDS);
+
+        assertThat(closeCount.get()).as("close count").isEqualTo(1);
+    }
+
+    @Test
+    void testLeaseDrainTimeout() throws Exception {
+        DefaultResourceManager resourceManager = new DefaultResourceManager();
+        resourceManager.setDrainTimeout(Duration.ofMillis(50));
+        resourceManager.register(FOO_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close);
+
+        try (ResourceLease<StringBuilder> lease = resourceManager.acquire(FOO_KEY)) {
+            assertThatThrownBy(() -> resourceManager.close(FOO_KEY)).as("drain timeout")
+                    .isInstanceOf(ClosingFailedException.class)
+                    .hasCauseInstanceOf(TimeoutException.class);
+            assertThat(lease.get()).as("leased").isSameAs(resourceManager.get(FOO_KEY));
+        }
+        resourceManager.close(FOO_KEY);
+
+        assertThat(resourceManager.isOpen(FOO_KEY)).as("foo is open").isFalse();
+    }
+
+    @Test
+    void testLeasesDoNotWaitForLock() throws Exception {
+        DefaultResourceManager resourceManager = new DefaultResourceManager();
+        resourceManager.register(FOO_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close);
+        StringBuilder foo = resourceManager.open(FOO_KEY);
+
+        synchronized (resourceManager) {
+            CompletableFuture<Boolean> future = CompletableFuture.supplyAsync(() -> {
+                try (ResourceLease<StringBuilder> lease = resourceManager.acquire(FOO_KEY)) {
+                    return lease.get() == foo;
+                }
+            });
+
+            assertThat(future.get(5, TimeUnit.SECONDS)).as("lock-free lease").isTrue();
+        }
+    }
+
+    @Test
+    void testLeaseAfterDrainTimeout() {
+        DefaultResourceManager resourceManager = new DefaultResourceManager();
+        resourceManager.setDrainTimeout(Duration.ofMillis(10));
+        resourceManager.register(FOO_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close);
+
+        try (ResourceLease<StringBuilder> lease = resourceManager.acquire(FOO_KEY)) {
+            assertThatThrownBy(() -> resourceManager.close(FOO_KEY)).as("drain timeout")
+                    .isInstanceOf(ClosingFailedException.class);
+            try (ResourceLease<StringBuilder> secondLease = resourceManager.acquire(FOO_KEY)) {
+                assertThat(secondLease.get()).as("second lease").isSameAs(lease.get());
+            }
+        }
+    }
+
+    @Test
+    void testRefresh() throws Exception {
+        DefaultResourceManager resourceManager = new DefaultResourceManager();
+        AtomicInteger version = new AtomicInteger();
+        List<String> closedValues = Collections.synchronizedList(new ArrayList<>());
+        resourceManager.register(FOO_KEY, (manager, key) -> new StringBuilder("foo" + version.get()),
+                (manager, key, value) -> closedValues.add(value.toString()));
+        resourceManager.register(BAR_KEY, (manager, key) -> new StringBuilder(manager.open(FOO_KEY)).append("-bar"),
+                (manager, key, value) -> closedValues.add(value.toString()), FOO_KEY);
+        resourceManager.register(BAZ_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close, FOO_KEY);
+        resourceManager.open(BAR_KEY);
+        ResourceLease<StringBuilder> lease = resourceManager.acquire(BAR_KEY);
+
+        version.set(1);
+        FutureTask<Void> refreshTask = runUntilBlocked(() -> {
+            resourceManager.refresh(FOO_KEY);
+            return null;
+        });
+
+        assertThat(refreshTask.isDone()).as("refresh is done").isFalse();
+        assertThat(resourceManager.get(BAR_KEY).toString()).as("new bar").isEqualTo("foo1-bar");
+        assertThat(resourceManager.get(FOO_KEY).toString()).as("new foo").isEqualTo("foo1");
+        assertThat(lease.get().toString()).as("leased bar").isEqualTo("foo0-bar");
+        assertThat(resourceManager.isOpen(BAZ_KEY)).as("baz is open").isFalse();
+        assertThat(closedValues).as("closed values").isEmpty();
+
+        lease.close();
+        refreshTask.get(5, TimeUnit.SECONDS);
+
+        assertThat(closedValues).as("closed values").containsExactly("foo0-bar", "foo0");
+    }
+
+    @Test
+    void testRefreshWithLeasingAndAsyncFactories() {
+        DefaultResourceManager resourceManager = new DefaultResourceManager();
+        AtomicInteger version = new AtomicInteger();
+        List<String> closedValues = Collections.synchronizedList(new ArrayList<>());
+        resourceManager.register(FOO_KEY, (manager, key) -> new StringBuilder("foo" + version.get()),
+                (manager, key, value) -> closedValues.add(value.toString()));
+        resourceManager.register(BAR_KEY, (manager, key) -> {
+            try (ResourceLease<StringBuilder> lease = manager.acquire(FOO_KEY)) {
+                return new StringBuilder(lease.get()).append("-bar");
+            }
+        }, DefaultResourceManagerTest::close, FOO_KEY);
+        resourceManager.register(BAZ_KEY, (manager, key) -> new StringBuilder(manager.openAsync(FOO_KEY).join())
+                .append("-baz"), DefaultResourceManagerTest::close, FOO_KEY);
+        resourceManager.open(BAR_KEY);
+        resourceManager.open(BAZ_KEY);
+
+        version.set(1);
+        resourceManager.refresh(FOO_KEY);
+
+        assertThat(resourceManager.get(BAR_KEY).toString()).as("bar").isEqualTo("foo1-bar");
+        assertThat(resourceManager.get(BAZ_KEY).toString()).as("baz").isEqualTo("foo1-baz");
+        assertThat(closedValues).as("closed values").containsExactly("foo0");
+
+        resourceManager.close(FOO_KEY);
+
+        assertThat(closedValues).as("closed values").containsExactly("foo0", "foo1");
+    }
+
+    @Test
+    void testRefreshDrainTimeout() {
+        DefaultResourceManager resourceManager = new DefaultResourceManager();
+        resourceManager.setDrainTimeout(Duration.ofMillis(10));
+        AtomicInteger version = new AtomicInteger();
+        List<String> closedValues = Collections.synchronizedList(new ArrayList<>());
+        resourceManager.register(FOO_KEY, (manager, key) -> new StringBuilder("foo" + version.get()),
+                (manager, key, value) -> closedValues.add(value.toString()));
+        resourceManager.register(BAR_KEY, (manager, key) -> new StringBuilder(manager.open(FOO_KEY)).append("-bar"),
+                (manager, key, value) -> closedValues.add(value.toString()), FOO_KEY);
+        ResourceLease<StringBuilder> lease = resourceManager.acquire(BAR_KEY);
+
+        version.set(1);
+        assertThatThrownBy(() -> resourceManager.refresh(FOO_KEY)).as("drain timeout")
+                .isInstanceOf(ClosingFailedException.class)
+                .hasCauseInstanceOf(TimeoutException.class);
+
+        assertThat(resourceManager.get(BAR_KEY).toString()).as("new bar").isEqualTo("foo1-bar");
+        assertThat(closedValues).as("closed values").isEmpty();
+
+        lease.close();
+
+        assertThat(closedValues).as("closed values").containsExactly("foo0-bar", "foo0");
+    }
+
+    @Test
+    void testRefreshFailure() {
+        DefaultResourceManager resourceManager = new DefaultResourceManager();
+        AtomicInteger version = new AtomicInteger();
+        resourceManager.register(FOO_KEY, (manager, key) -> new StringBuilder("foo" + version.get()),
+                DefaultResourceManagerTest::close);
+        resourceManager.register(BAR_KEY, (manager, key) -> {
+            if (version.get() > 0) {
+                throw new IllegalStateException("Failed");
+            }
+            return new StringBuilder(manager.open(FOO_KEY)).append("-bar");
+        }, DefaultResourceManagerTest::close, FOO_KEY);
+        StringBuilder oldFoo = resourceManager.open(FOO_KEY);
+        StringBuilder oldBar = resourceManager.open(BAR_KEY);
+
+        version.set(1);
+
+        assertThatThrownBy(() -> resourceManager.refresh(FOO_KEY)).as("refresh failure")
+                .isInstanceOf(OpeningFailedException.class);
+        assertThat(resourceManager.get(FOO_KEY)).as("foo").isSameAs(oldFoo);
+        assertThat(resourceManager.get(BAR_KEY)).as("bar").isSameAs(oldBar);
+        assertThat(oldBar.toString()).as("old bar").isEqualTo("foo0-bar");
+
+        resourceManager.close(FOO_KEY);
+
+        assertThat(resourceManager.hasOpen()).as("has open").isFalse();
+    }
+
+    @Test
+    void testIdleEviction() {
+        DefaultResourceManager resourceManager = new DefaultResourceManager();
+        resourceManager.register(FOO_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close);
+        resourceManager.register(BAR_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close, FOO_KEY);
+        resourceManager.register(BAZ_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close);
+        resourceManager.setIdleTimeout(FOO_KEY, Duration.ofNanos(1));
+        resourceManager.open(BAR_KEY);
+        resourceManager.open(BAZ_KEY);
+        resourceManager.evictIdle();
+        awaitClockTick();
+        resourceManager.evictIdle();
+
+        assertThat(resourceManager.isOpen(FOO_KEY)).as("foo with open dependant").isTrue();
+
+        resourceManager.setIdleTimeout(BAR_KEY, Duration.ofNanos(1));
+        resourceManager.evictIdle();
+        awaitClockTick();
+        resourceManager.get(FOO_KEY);
+        resourceManager.evictIdle();
+
+        assertThat(resourceManager.isOpen(BAR_KEY)).as("bar is open").isFalse();
+        assertThat(resourceManager.isOpen(FOO_KEY)).as("accessed foo is open").isTrue();
+
+        awaitClockTick();
+        resourceManager.evictIdle();
+
+        assertThat(resourceManager.isOpen(FOO_KEY)).as("foo is open").isFalse();
+        assertThat(resourceManager.isOpen(BAZ_KEY)).as("baz is open").isTrue();
+        assertThat(resourceManager.getIdleTimeout(BAZ_KEY)).as("baz idle timeout").isNull();
+        assertThat(resourceManager.open(BAR_KEY).toString()).as("reopened bar").isEqualTo("bar");
+    }
+
+    @Test
+    void testScheduledIdleEviction() throws Exception {
+        DefaultResourceManager resourceManager = new DefaultResourceManager();
+        CountDownLatch closedLatch = new CountDownLatch(1);
+        resourceManager.register(FOO_KEY, DefaultResourceManagerTest::create, (manager, key, value) -> {
+            closedLatch.countDown();
+        });
+        resourceManager.setIdleTimeout(FOO_KEY, Duration.ofMillis(20));
+        resourceManager.open(FOO_KEY);
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            ScheduledFuture<?> future = resourceManager.scheduleIdleEviction(scheduler, Duration.ofMillis(10));
+            assertThat(closedLatch.await(5, TimeUnit.SECONDS)).as("foo closed").isTrue();
+            future.cancel(false);
+        } finally {
+            scheduler.shutdown();
+        }
+
+        assertThat(scheduler.awaitTermination(5, TimeUnit.SECONDS)).as("eviction finished").isTrue();
+        assertThat(resourceManager.isOpen(FOO_KEY)).as("foo is open").isFalse();
+    }
+
+    @Test
+    void testOpenBudget() {
+        ResourceKey<StringBuilder> quxKey = ResourceKey.of("qux", StringBuilder.class);
+        DefaultResourceManager resourceManager = new DefaultResourceManager();
+        resourceManager.register(FOO_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close);
+        resourceManager.register(BAR_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close, FOO_KEY);
+        resourceManager.register(BAZ_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close);
+        resourceManager.register(quxKey, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close);
+        resourceManager.setOpenBudget(2);
+        resourceManager.open(FOO_KEY);
+        resourceManager.open(BAZ_KEY);
+        resourceManager.open(quxKey);
+
+        assertThat(resourceManager.openKeySet()).as("open keys").containsExactlyInAnyOrder(BAZ_KEY, quxKey);
+
+        resourceManager.get(quxKey);
+        resourceManager.open(FOO_KEY);
+
+        assertThat(resourceManager.openKeySet()).as("open keys").containsExactlyInAnyOrder(FOO_KEY, quxKey);
+
+        resourceManager.open(BAR_KEY);
+
+        assertThat(resourceManager.openKeySet()).as("open keys").containsExactlyInAnyOrder(FOO_KEY, BAR_KEY);
+
+        resourceManager.setWeight(BAZ_KEY, 2);
+        resourceManager.open(BAZ_KEY);
+
+        assertThat(resourceManager.openKeySet()).as("open keys").containsExactlyInAnyOrder(BAZ_KEY);
+        assertThat(resourceManager.getOpenWeight()).as("open weight").isEqualTo(2L);
+    }
+
+    @Test
+    void testOpenBudgetClosesWithoutLock() {
+        DefaultResourceManager resourceManager = new DefaultResourceManager();
+        List<Boolean> lockHeldOnClose = Collections.synchronizedList(new ArrayList<>());
+        resourceManager.register(FOO_KEY, DefaultResourceManagerTest::create, (manager, key, value) -> {
+            lockHeldOnClose.add(Thread.holdsLock(manager));
+        });
+        resourceManager.register(BAR_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close);
+        resourceManager.setOpenBudget(1);
+        resourceManager.open(FOO_KEY);
+        resourceManager.open(BAR_KEY);
+
+        assertThat(resourceManager.openKeySet()).as("open keys").containsExactly(BAR_KEY);
+        assertThat(lockHeldOnClose).as("lock held on close").containsExactly(false);
+    }
+
+    @Test
+    void testOpenBudgetExceededByLease() {
+        DefaultResourceManager resourceManager = new DefaultResourceManager();
+        resourceManager.register(FOO_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close);
+        resourceManager.register(BAR_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close);
+        resourceManager.setOpenBudget(1);
+
+        try (ResourceLease<StringBuilder> lease = resourceManager.acquire(FOO_KEY)) {
+            resourceManager.open(BAR_KEY);
+
+            assertThat(resourceManager.isOpen(FOO_KEY)).as("leased foo is open").isTrue();
+            assertThat(resourceManager.getOpenWeight()).as("open weight").isEqualTo(2L);
+        }
+        resourceManager.close(BAR_KEY);
+
+        assertThat(resourceManager.getOpenWeight()).as("open weight").isEqualTo(1L);
+    }
+
+    @Test
+    void testReclaimable() {
+        DefaultResourceManager resourceManager = new DefaultResourceManager();
+        AtomicInteger closeCount = new AtomicInteger();
+        resourceManager.register(FOO_KEY, DefaultResourceManagerTest::create, (manager, key, value) -> {
+            closeCount.incrementAndGet();
+        });
+        resourceManager.register(BAR_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close, FOO_KEY);
+        resourceManager.setReclaimable(FOO_KEY, true);
+        StringBuilder foo = resourceManager.open(FOO_KEY);
+
+        assertThat(resourceManager.reclaim(FOO_KEY)).as("reclaimed").isTrue();
+        assertThat(resourceManager.isOpen(FOO_KEY)).as("foo is open").isFalse();
+        assertThat(resourceManager.isReclaimed(FOO_KEY)).as("foo is reclaimed").isTrue();
+        assertThat(resourceManager.countReclaimed()).as("reclaimed count").isEqualTo(1);
+        assertThat(resourceManager.countOpen()).as("open count").isZero();
+        assertThat(resourceManager.snapshot().isOpen(FOO_KEY)).as("foo is open in snapshot").isFalse();
+        assertThat(resourceManager.isReclaimed(BAR_KEY)).as("bar is reclaimed").isFalse();
+
+        StringBuilder newFoo = resourceManager.open(FOO_KEY);
+
+        assertThat(newFoo).as("new foo").isNotSameAs(foo);
+        assertThat(resourceManager.isReclaimed(FOO_KEY)).as("foo is reclaimed").isFalse();
+        assertThat(resourceManager.countReclaimed()).as("reclaimed count").isZero();
+
+        resourceManager.open(BAR_KEY);
+
+        assertThat(resourceManager.reclaim(FOO_KEY)).as("reclaimed with open dependant").isFalse();
+
+        resourceManager.close(BAR_KEY);
+
+        assertThat(resourceManager.isOpen(FOO_KEY)).as("foo is open").isTrue();
+        assertThat(resourceManager.reclaim(FOO_KEY)).as("reclaimed").isTrue();
+        assertThat(closeCount.get()).as("close count").isZero();
+        assertThat(resourceManager.hasOpen()).as("has open").isFalse();
+    }
+
+    @Test
+    void testReclaimedBeforeUnsettingReclaimable() {
+        DefaultResourceManager resourceManager = new DefaultResourceManager();
+        resourceManager.register(FOO_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close);
+        resourceManager.setReclaimable(FOO_KEY, true);
+        resourceManager.open(FOO_KEY);
+
+        assertThat(resourceManager.reclaim(FOO_KEY)).as("reclaimed").isTrue();
+
+        resourceManager.setReclaimable(FOO_KEY, false);
+
+        assertThat(resourceManager.isOpen(FOO_KEY)).as("foo is open").isFalse();
+        assertThat(resourceManager.isReclaimed(FOO_KEY)).as("foo is reclaimed").isTrue();
+        assertThat(resourceManager.countOpen()).as("open count").isZero();
+        assertThat(resourceManager.openKeySet()).as("open keys").isEmpty();
+        assertThat(resourceManager.getOpenWeight()).as("open weight").isZero();
+        assertThat(resourceManager.open(FOO_KEY).toString()).as("reopened foo").isEqualTo("foo");
+        assertThat(resourceManager.countOpen()).as("open count").isEqualTo(1);
+    }
+
+    @Test
+    void testChild() {
+        DefaultResourceManager resourceManager = new DefaultResourceManager();
+        resourceManager.register(FOO_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close);
+        DefaultResourceManager child = resourceManager.createChild("child");
+        child.register(BAR_KEY, (manager, key) -> new StringBuilder(manager.open(FOO_KEY)).append("-bar"),
+                DefaultResourceManagerTest::close, FOO_KEY);
+        StringBuilder bar = child.open(BAR_KEY);
+
+        assertThat(bar.toString()).as("bar").isEqualTo("foo-bar");
+        assertThat(child.getParent()).as("parent").isSameAs(resourceManager);
+        assertThat(child.get(FOO_KEY)).as("foo via child").isSameAs(resourceManager.get(FOO_KEY));
+        assertThat(child.isOpen(FOO_KEY)).as("foo is open via child").isTrue();
+        assertThat(child.containsKey(FOO_KEY)).as("child contains foo").isTrue();
+        assertThat(child.keySet()).as("child keys").containsExactly(BAR_KEY);
+        assertThat(child.countOpen()).as("child open count").isEqualTo(1);
+        assertThat(resourceManager.containsKey(BAR_KEY)).as("parent contains bar").isFalse();
+        assertThatThrownBy(() -> child.register(
+                FOO_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close))
+                        .as("register parent key")
+                        .isInstanceOf(DuplicateKeyException.class);
+
+        child.closeAll();
+
+        assertThat(child.isOpen(BAR_KEY)).as("bar is open").isFalse();
+        assertThat(resourceManager.isOpen(FOO_KEY)).as("foo is open").isTrue();
+    }
+
+    @Test
+    void testClosingParentClosesChildDependants() throws Exception {
+        DefaultResourceManager resourceManager = new DefaultResourceManager();
+        List<String> closedNames = Collections.synchronizedList(new ArrayList<>());
+        ResourceCloser<StringBuilder> closer = (manager, key, value) -> closedNames.add(key.getName());
+        resourceManager.register(FOO_KEY, DefaultResourceManagerTest::create, closer);
+        DefaultResourceManager child = resourceManager.createChild("child");
+        child.register(BAR_KEY, DefaultResourceManagerTest::create, closer, FOO_KEY);
+        child.register(BAZ_KEY, DefaultResourceManagerTest::create, closer, BAR_KEY);
+        child.open(BAZ_KEY);
+
+        CompletableFuture.runAsync(resourceManager::closeAll).get(5, TimeUnit.SECONDS);
+
+        assertThat(child.hasOpen()).as("child has open").isFalse();
+        assertThat(resourceManager.hasOpen()).as("parent has open").isFalse();
+        assertThat(closedNames).as("closed names").containsExactly("baz", "bar", "foo");
+    }
+
+    @Test
+    void testClosingParentClosesDependantsOfDroppedChild() throws Exception {
+        DefaultResourceManager resourceManager = new DefaultResourceManager();
+        resourceManager.register(FOO_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close);
+        StringBuilder bar = openInDroppedChild(resourceManager);
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+
+        CompletableFuture.runAsync(() -> resourceManager.close(FOO_KEY)).get(5, TimeUnit.SECONDS);
+
+        assertThat(resourceManager.isOpen(FOO_KEY)).as("foo is open").isFalse();
+        assertThat(bar.toString()).as("bar of dropped child").isEmpty();
+    }
+
+    @Test
+    void testRefreshingParentClosesChildDependants() throws Exception {
+        DefaultResourceManager resourceManager = new DefaultResourceManager();
+        resourceManager.register(FOO_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close);
+        DefaultResourceManager child = resourceManager.createChild("child");
+        child.register(BAR_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close, FOO_KEY);
+        StringBuilder foo = resourceManager.open(FOO_KEY);
+        child.open(BAR_KEY);
+
+        CompletableFuture.runAsync(() -> resourceManager.refresh(FOO_KEY)).get(5, TimeUnit.SECONDS);
+
+        assertThat(child.isOpen(BAR_KEY)).as("bar is open").isFalse();
+        assertThat(resourceManager.get(FOO_KEY)).as("new foo").isNotSameAs(foo);
+        assertThat(foo.toString()).as("old foo").isEmpty();
+    }
+
+    @Test
+    void testOpenTimeout() throws Exception {
+        DefaultResourceManager resourceManager = new DefaultResourceManager();
+        CountDownLatch startedLatch = new CountDownLatch(1);
+        CountDownLatch latch = new CountDownLatch(1);
+        resourceManager.register(FOO_KEY, (manager, key) -> {
+            startedLatch.countDown();
+            latch.await();
+            return new StringBuilder("foo");
+        }, DefaultResourceManagerTest::close);
+        CompletableFuture<StringBuilder> stuckFuture = CompletableFuture.supplyAsync(
+                () -> resourceManager.open(FOO_KEY));
+        assertThat(startedLatch.await(5, TimeUnit.SECONDS)).as("opening started").isTrue();
+
+        long startNanos = System.nanoTime();
+        assertThatThrownBy(() -> resourceManager.open(FOO_KEY, Duration.ofMillis(100))).as("timeout")
+                .isInstanceOf(OpeningFailedException.class)
+                .hasCauseInstanceOf(TimeoutException.class);
+        assertThat(System.nanoTime() - startNanos).as("waited nanos").isLessThan(TimeUnit.SECONDS.toNanos(5));
+
+        latch.countDown();
+
+        assertThat(stuckFuture.get(5, TimeUnit.SECONDS).toString()).as("foo").isEqualTo("foo");
+        assertThat(resourceManager.open(FOO_KEY, Duration.ofMillis(100))).as("open foo").isSameAs(stuckFuture.get());
+    }
+
+    @Test
+    void testOpenTimeoutWithBlockingFactory() throws Exception {
+        DefaultResourceManager resourceManager = new DefaultResourceManager();
+        CountDownLatch latch = new CountDownLatch(1);
+        resourceManager.register(FOO_KEY, (manager, key) -> {
+            latch.await();
+            return new StringBuilder("foo");
+        }, DefaultResourceManagerTest::close);
+
+        long startNanos = System.nanoTime();
+        assertThatThrownBy(() -> resourceManager.open(FOO_KEY, Duration.ofMillis(100))).as("timeout")
+                .isInstanceOf(OpeningFailedException.class)
+                .hasCauseInstanceOf(TimeoutException.class);
+        assertThat(System.nanoTime() - startNanos).as("waited nanos").isLessThan(TimeUnit.SECONDS.toNanos(5));
+
+        latch.countDown();
+
+        assertThat(resourceManager.open(FOO_KEY).toString()).as("foo").isEqualTo("foo");
+    }
+
+    @Test
+    void testOpenDeadlinePropagation() throws Exception {
+        DefaultResourceManager resourceManager = new DefaultResourceManager();
+        AtomicReference<Duration> remainingTime = new AtomicReference<>();
+        CountDownLatch startedLatch = new CountDownLatch(1);
+        CountDownLatch latch = new CountDownLatch(1);
+        resourceManager.register(FOO_KEY, (manager, key) -> {
+            remainingTime.set(DefaultResourceManager.remainingOpenTime());
+            startedLatch.countDown();
+            latch.await();
+            return new StringBuilder("foo");
+        }, DefaultResourceManagerTest::close);
+        resourceManager.register(BAR_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close, FOO_KEY);
+
+        assertThatThrownBy(() -> resourceManager.open(BAR_KEY, Duration.ofMillis(100))).as("timeout")
+                .isInstanceOf(OpeningFailedException.class)
+                .hasCauseInstanceOf(TimeoutException.class);
+        assertThat(startedLatch.await(5, TimeUnit.SECONDS)).as("foo opening started").isTrue();
+        assertThat(remainingTime.get()).as("remaining time in factory")
+                .isNotNull()
+                .isLessThanOrEqualTo(Duration.ofMillis(100));
+
+        latch.countDown();
+
+        assertThat(resourceManager.open(FOO_KEY).toString()).as("foo").isEqualTo("foo");
+        assertThat(resourceManager.isOpen(BAR_KEY)).as("bar is open").isFalse();
+        assertThat(DefaultResourceManager.remainingOpenTime()).as("remaining time on caller").isNull();
+    }
+
+    private static Throwable openForFailure(ResourceManager resourceManager, ResourceKey<?> key) {
+        try {
+            resourceManager.open(key);
+            return null;
+        } catch (Exception e) {
+            return e;
+        }
+    }
+
+    private static boolean hasCyclicCause(Throwable throwable) {
+        for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+            if (cause instanceof CyclicDependencyException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static StringBuilder openInDroppedChild(DefaultResourceManager resourceManager) {
+        DefaultResourceManager child = resourceManager.createChild("child");
+        child.register(BAR_KEY, DefaultResourceManagerTest::create, DefaultResourceManagerTest::close, FOO_KEY);
+        return child.open(BAR_KEY);
+    }
+
+    /**
+     * Runs the task on a new thread, and returns when the thread waits (or the task is done)
+     */
+    private static <T> FutureTask<T> runUntilBlocked(Callable<T> callable) {
+        FutureTask<T> task = new FutureTask<>(callable);
+        Thread thread = new Thread(task);
+        thread.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        Thread.State state;
+        while ((state = thread.getState()) != Thread.State.WAITING && state != Thread.State.TIMED_WAITING) {
+            if (task.isDone()) {
+                break;
+            }
+            assertThat(System.nanoTime() - deadline).as("nanos after blocking deadline").isLessThan(0L);
+            Thread.yield();
+        }
+        return task;
+    }
+
+    /**
+     * Waits until the nano clock passes all the earlier readings
+     */
+    private static void awaitClockTick() {
+        long startNanos = System.nanoTime();
+        while (System.nanoTime() == startNanos) {
+            Thread.yield();
+        }
+    }
+
+    private static StringBuilder create(ResourceManager resourceManager, ResourceKey<StringBuilder> key) {
+        return new StringBuilder(key.getName());
+    }
+
+    private static void close(ResourceManager resourceManager, ResourceKey<StringBuilder> key, StringBuilder value) {
+        value.setLength(0);
+    }
+
+}
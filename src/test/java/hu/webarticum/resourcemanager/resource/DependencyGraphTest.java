@@ -0,0 +1,228 @@
+package hu.webarticum.resourcemanager.resource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+class DependencyGraphTest {
+
+    @Test
+    void testOrderOfAppended() {
+        DependencyGraph graph = new DependencyGraph();
+        graph.add(key("a"), Collections.emptyList());
+        graph.add(key("b"), keys("a"));
+        graph.add(key("c"), keys("a", "b"));
+
+        assertThat(graph.keysInOrder()).as("order").isEqualTo(keys("a", "b", "c"));
+        assertThat(graph.collectDependants(key("a"))).as("dependants of a").isEqualTo(keys("b", "c"));
+        assertThat(graph.collectDependencies(key("c"), k -> true)).as("dependencies of c").isEqualTo(keys("a", "b"));
+    }
+
+    @Test
+    void testOrderOfDependencyAddedLater() {
+        DependencyGraph graph = new DependencyGraph();
+        graph.add(key("c"), keys("b"));
+        graph.add(key("a"), Collections.emptyList());
+        graph.add(key("b"), keys("a"));
+
+        assertThat(graph.keysInOrder()).as("order").containsSubsequence(key("a"), key("b"), key("c"));
+        assertThat(graph.collectDependants(key("a"))).as("dependants of a").isEqualTo(keys("b", "c"));
+    }
+
+    @Test
+    void testCycle() {
+        DependencyGraph graph = new DependencyGraph();
+        graph.add(key("a"), keys("c"));
+        graph.add(key("b"), keys("a"));
+
+        assertThatThrownBy(() -> graph.add(key("c"), keys("b"))).as("cycle")
+                .isInstanceOf(CyclicDependencyException.class);
+        assertThat(graph.collectDependants(key("c"))).as("dependants of c").isEqualTo(keys("a", "b"));
+        assertThat(graph.collectDependencies(key("c"), k -> true)).as("dependencies of c").isEmpty();
+    }
+
+    @Test
+    void testSelfDependency() {
+        DependencyGraph graph = new DependencyGraph();
+
+        assertThatThrownBy(() -> graph.add(key("a"), keys("a"))).as("self dependency")
+                .isInstanceOf(CyclicDependencyException.class);
+        assertThat(graph.keysInOrder()).as("keys").isEmpty();
+    }
+
+    @Test
+    void testAddAll() {
+        DependencyGraph graph = new DependencyGraph();
+        graph.add(key("x"), keys("b"));
+        Map<ResourceKey<?>, List<ResourceKey<?>>> batch = new LinkedHashMap<>();
+        batch.put(key("c"), keys("b"));
+        batch.put(key("b"), keys("a"));
+        batch.put(key("a"), Collections.emptyList());
+        graph.addAll(batch);
+
+        assertThat(graph.keysInOrder()).as("order").containsSubsequence(key("a"), key("b"), key("c"));
+        assertThat(new HashSet<>(graph.collectDependants(key("a")))).as("dependants of a")
+                .isEqualTo(new HashSet<>(keys("b", "c", "x")));
+    }
+
+    @Test
+    void testAddAllRollback() {
+        DependencyGraph graph = new DependencyGraph();
+        graph.add(key("x"), keys("b"));
+        Map<ResourceKey<?>, List<ResourceKey<?>>> batch = new LinkedHashMap<>();
+        batch.put(key("a"), Collections.emptyList());
+        batch.put(key("b"), keys("a", "x"));
+
+        assertThatThrownBy(() -> graph.addAll(batch)).as("cycle through existing key")
+                .isInstanceOf(CyclicDependencyException.class);
+        assertThat(graph.keysInOrder()).as("order").isEqualTo(keys("b", "x"));
+        assertThat(graph.collectDependencies(key("b"), k -> true)).as("dependencies of b").isEmpty();
+    }
+
+    @Test
+    void testRemove() {
+        DependencyGraph graph = new DependencyGraph();
+        graph.add(key("a"), Collections.emptyList());
+        graph.add(key("b"), keys("a"));
+        graph.add(key("c"), keys("b"));
+        graph.remove(key("b"));
+
+        assertThat(graph.keysInOrder()).as("order").isEqualTo(keys("a", "b", "c"));
+        assertThat(graph.collectDependants(key("a"))).as("dependants of a").isEmpty();
+
+        graph.remove(key("c"));
+
+        assertThat(graph.keysInOrder()).as("order").isEqualTo(keys("a"));
+    }
+
+    @Test
+    void testLargeReverseChain() {
+        DependencyGraph graph = new DependencyGraph();
+        int size = 100_000;
+        for (int i = 0; i < size; i++) {
+            graph.add(key("k" + i), keys("k" + (i + 1)));
+        }
+        graph.add(key("k" + size), Collections.emptyList());
+
+        List<ResourceKey<?>> order = graph.keysInOrder();
+        assertThat(order.size()).as("size").isEqualTo(size + 1);
+        assertThat(order.get(0)).as("first").isEqualTo(key("k" + size));
+        assertThat(order.get(size)).as("last").isEqualTo(key("k0"));
+    }
+
+    @Test
+    void testRandomRegistrationOrder() {
+        Random random = new Random(42);
+        int size = 2000;
+        List<Integer> registrationOrder = new ArrayList<>();
+        Map<Integer, List<ResourceKey<?>>> dependencies = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            registrationOrder.add(i);
+            List<ResourceKey<?>> dependenciesOfKey = new ArrayList<>();
+            for (int j = 0; j < 3 && i > 0; j++) {
+                dependenciesOfKey.add(key("k" + random.nextInt(i)));
+            }
+            dependencies.put(i, dependenciesOfKey);
+        }
+        Collections.shuffle(registrationOrder, random);
+
+        DependencyGraph graph = new DependencyGraph();
+        Set<ResourceKey<?>> addedKeys = new HashSet<>();
+        for (int i : registrationOrder) {
+            ResourceKey<?> dependantKey = key("k" + i);
+            graph.add(dependantKey, dependencies.get(i));
+            addedKeys.add(dependantKey);
+            if (!dependencies.get(i).isEmpty() && !addedKeys.contains(dependencies.get(i).get(0))) {
+                ResourceKey<?> cyclicKey = dependencies.get(i).get(0);
+                assertThatThrownBy(() -> graph.add(cyclicKey, Collections.singletonList(dependantKey)))
+                        .as("cycle")
+                        .isInstanceOf(CyclicDependencyException.class);
+            }
+        }
+
+        List<ResourceKey<?>> order = graph.keysInOrder();
+        Map<ResourceKey<?>, Integer> positions = new HashMap<>();
+        for (int i = 0; i < order.size(); i++) {
+            positions.put(order.get(i), i);
+        }
+        for (int i = 0; i < size; i++) {
+            for (ResourceKey<?> dependency : dependencies.get(i)) {
+                assertThat(positions.get(dependency) < positions.get(key("k" + i))).as("order").isTrue();
+            }
+        }
+    }
+
+    // memory benchmark, depends on the JVM and its GC settings, run with -Dresourcemanager.benchmark=true
+    @Test
+    @EnabledIfSystemProperty(named = "resourcemanager.benchmark", matches = "true")
+    void testFootprint() {
+        int size = 200_000;
+        int degree = 3;
+        Random random = new Random(42);
+        List<ResourceKey<?>> allKeys = new ArrayList<>(size);
+        List<List<ResourceKey<?>>> allDependencies = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            allKeys.add(key("k" + i));
+            List<ResourceKey<?>> dependenciesOfKey = new ArrayList<>();
+            for (int j = 0; j < degree && i > 0; j++) {
+                dependenciesOfKey.add(allKeys.get(random.nextInt(i)));
+            }
+            allDependencies.add(dependenciesOfKey);
+        }
+
+        long baseBytes = usedMemory();
+        DependencyGraph graphWithoutEdges = new DependencyGraph();
+        for (int i = 0; i < size; i++) {
+            graphWithoutEdges.add(allKeys.get(i), Collections.emptyList());
+        }
+        long bytesPerKey = (usedMemory() - baseBytes) / size;
+
+        baseBytes = usedMemory();
+        DependencyGraph graph = new DependencyGraph();
+        for (int i = 0; i < size; i++) {
+            graph.add(allKeys.get(i), allDependencies.get(i));
+        }
+        long bytesPerEdge = (usedMemory() - baseBytes - (bytesPerKey * size)) / (size * (long) degree);
+
+        assertThat(graphWithoutEdges.keysInOrder()).as("keys").hasSize(size);
+        assertThat(graph.keysInOrder()).as("keys").hasSize(size);
+        assertThat(bytesPerKey).as("bytes per key").isLessThan(120L);
+        assertThat(bytesPerEdge).as("bytes per edge").isLessThan(24L);
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        long usedMemory = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc(); // NOSONAR
+            usedMemory = Math.min(usedMemory, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return usedMemory;
+    }
+
+    private static List<ResourceKey<?>> keys(String... names) {
+        ResourceKey<?>[] keys = new ResourceKey<?>[names.length];
+        for (int i = 0; i < names.length; i++) {
+            keys[i] = key(names[i]);
+        }
+        return Arrays.asList(keys);
+    }
+
+    private static ResourceKey<?> key(String name) {
+        return new ResourceKey<>(name, Object.class);
+    }
+
+}
@@ -0,0 +1,131 @@
+package hu.webarticum.resourcemanager.resource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class ResourceFamilyTest {
+
+    private static final ResourceKey<StringBuilder> CONFIG_KEY = ResourceKey.of("config", StringBuilder.class);
+
+    private static final ResourceKey<StringBuilder> CLIENT_KEY = ResourceKey.of("client", StringBuilder.class);
+
+
+    @Test
+    void testOpen() {
+        ResourceManager resourceManager = new DefaultResourceManager();
+        resourceManager.register(CONFIG_KEY, (manager, key) -> new StringBuilder("config"), (manager, key, value) -> {});
+        ResourceFamily<String, StringBuilder> family = new ResourceFamily<>(
+                resourceManager, CLIENT_KEY,
+                (manager, tenant) -> new StringBuilder(manager.open(CONFIG_KEY)).append(':').append(tenant),
+                (manager, key, value) -> {}, 10, CONFIG_KEY);
+
+        StringBuilder client = family.open("lorem");
+
+        assertThat(client.toString()).as("client").isEqualTo("config:lorem");
+        assertThat(family.open("lorem")).as("same client").isSameAs(client);
+        assertThat(family.get("lorem")).as("get client").isSameAs(client);
+        assertThat(family.get("ipsum")).as("get missing client").isNull();
+        assertThat(resourceManager.isOpen(family.memberKey("lorem"))).as("member is open").isTrue();
+
+        resourceManager.close(CONFIG_KEY);
+
+        assertThat(family.get("lorem")).as("client after closing dependency").isNull();
+
+        family.remove("lorem");
+
+        assertThat(family.containsMember("lorem")).as("contains removed member").isFalse();
+        assertThat(resourceManager.keySet()).as("keys").containsExactly(CONFIG_KEY);
+    }
+
+    @Test
+    void testEviction() {
+        ResourceManager resourceManager = new DefaultResourceManager();
+        AtomicInteger closeCount = new AtomicInteger();
+        ResourceFamily<Integer, StringBuilder> family = new ResourceFamily<>(
+                resourceManager, CLIENT_KEY,
+                (manager, tenant) -> new StringBuilder("client" + tenant),
+                (manager, key, value) -> closeCount.incrementAndGet(), 2);
+        family.open(1);
+        family.open(2);
+        family.open(3);
+
+        assertThat(family.size()).as("size").isEqualTo(2);
+        assertThat(family.containsMember(3)).as("contains new member").isTrue();
+        assertThat(resourceManager.size()).as("registered members").isEqualTo(2);
+        assertThat(closeCount.get()).as("close count").isEqualTo(1);
+        assertThat(family.open(1).toString()).as("reopened member").isEqualTo("client1");
+    }
+
+    @Test
+    void testSlowEvictionDoesNotBlockNewMembers() throws Exception {
+        ResourceManager resourceManager = new DefaultResourceManager();
+        CountDownLatch closingLatch = new CountDownLatch(1);
+        CountDownLatch releaseLatch = new CountDownLatch(1);
+        ResourceFamily<Integer, StringBuilder> family = new ResourceFamily<>(
+                resourceManager, CLIENT_KEY,
+                (manager, tenant) -> new StringBuilder("client" + tenant),
+                (manager, key, value) -> {
+                    if (value.toString().equals("client1")) {
+                        closingLatch.countDown();
+                        releaseLatch.await(5, TimeUnit.SECONDS);
+                    }
+                }, 1);
+        family.open(1);
+
+        try {
+            CompletableFuture<StringBuilder> evictingFuture = CompletableFuture.supplyAsync(() -> family.open(2));
+            assertThat(closingLatch.await(5, TimeUnit.SECONDS)).as("closing").isTrue();
+
+            assertThat(CompletableFuture.supplyAsync(() -> family.open(3)).get(5, TimeUnit.SECONDS).toString())
+                    .as("new member while evicting").isEqualTo("client3");
+            assertThat(evictingFuture.isDone()).as("evicting is done").isFalse();
+
+            releaseLatch.countDown();
+
+            assertThat(evictingFuture.get(5, TimeUnit.SECONDS).toString()).as("evicting").isEqualTo("client2");
+        } finally {
+            releaseLatch.countDown();
+        }
+    }
+
+    @Test
+    void testMemberKeysAreQualifiedByParameter() {
+        ResourceManager resourceManager = new DefaultResourceManager();
+        ResourceKey<StringBuilder> lookalikeKey = ResourceKey.of("client[1]", StringBuilder.class);
+        resourceManager.register(lookalikeKey, (manager, key) -> new StringBuilder("lookalike"), (manager, key, value) -> {});
+        ResourceFamily<Object, StringBuilder> family = new ResourceFamily<>(
+                resourceManager, CLIENT_KEY,
+                (manager, tenant) -> new StringBuilder(tenant.getClass().getSimpleName()),
+                (manager, key, value) -> {}, 10);
+
+        assertThat(family.open(1).toString()).as("integer member").isEqualTo("Integer");
+        assertThat(family.open("1").toString()).as("string member").isEqualTo("String");
+        assertThat(family.memberKey(1)).as("member keys").isNotEqualTo(family.memberKey("1"));
+        assertThat(family.memberKey(1)).as("member key and lookalike").isNotEqualTo(lookalikeKey);
+        assertThat(resourceManager.open(lookalikeKey).toString()).as("lookalike").isEqualTo("lookalike");
+    }
+
+    @Test
+    void testManyMembers() {
+        DefaultResourceManager resourceManager = new DefaultResourceManager();
+        resourceManager.register(CONFIG_KEY, (manager, key) -> new StringBuilder("config"), (manager, key, value) -> {});
+        int maxMembers = 1000;
+        ResourceFamily<Integer, StringBuilder> family = new ResourceFamily<>(
+                resourceManager, CLIENT_KEY,
+                (manager, tenant) -> new StringBuilder(), (manager, key, value) -> {}, maxMembers, CONFIG_KEY);
+        for (int i = 0; i < 200_000; i++) {
+            family.open(i % 3 == 0 ? i % maxMembers : i);
+        }
+
+        assertThat(family.size()).as("size").isEqualTo(maxMembers);
+        assertThat(resourceManager.size()).as("registered keys").isEqualTo(maxMembers + 1);
+        assertThat(resourceManager.countOpen()).as("open count").isEqualTo(maxMembers + 1);
+    }
+
+}
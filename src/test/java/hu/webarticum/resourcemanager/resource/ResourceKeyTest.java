@@ -0,0 +1,73 @@
+package hu.webarticum.resourcemanager.resource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.junit.jupiter.api.Test;
+
+class ResourceKeyTest {
+
+    @Test
+    void testCanonical() {
+        ResourceKey<String> key = ResourceKey.of("foo", String.class);
+
+        assertThat(ResourceKey.of("foo", String.class)).as("same name and type").isSameAs(key);
+        assertThat(ResourceKey.of("foo", Object.class)).as("other type").isNotEqualTo(key);
+        assertThat(ResourceKey.of("bar", String.class).getId()).as("other id").isNotEqualTo(key.getId());
+        assertThat(key.isCanonical()).as("canonical").isTrue();
+        assertThat(key.getId() >= 0).as("has id").isTrue();
+    }
+
+    @Test
+    void testEqualityWithNonCanonical() {
+        ResourceKey<String> canonicalKey = ResourceKey.of("foo", String.class);
+        ResourceKey<String> key = new ResourceKey<>("foo", String.class);
+
+        assertThat(key.isCanonical()).as("canonical").isFalse();
+        assertThat(key.getId()).as("id").isEqualTo(-1);
+        assertThat(key).as("equal").isEqualTo(canonicalKey);
+        assertThat(canonicalKey).as("equal reversed").isEqualTo(key);
+        assertThat(key.hashCode()).as("hash code").isEqualTo(canonicalKey.hashCode());
+        assertThat(ResourceKey.of(key.getName(), key.getResourceType())).as("canonical").isSameAs(canonicalKey);
+    }
+
+    @Test
+    void testEqualityWithQualified() {
+        ResourceKey<String> canonicalKey = ResourceKey.of("foo", String.class);
+        ResourceKey<String> key = new ResourceKey<>("foo", String.class, 1);
+
+        assertThat(key).as("equal").isEqualTo(new ResourceKey<>("foo", String.class, 1));
+        assertThat(key).as("different qualifier").isNotEqualTo(new ResourceKey<>("foo", String.class, "1"));
+        assertThat(key).as("unqualified").isNotEqualTo(canonicalKey);
+        assertThat(canonicalKey).as("unqualified reversed").isNotEqualTo(key);
+        assertThat(key.toString()).as("string").isEqualTo("foo[1]:java.lang.String");
+    }
+
+    @Test
+    void testSerialization() throws Exception {
+        ResourceKey<String> canonicalKey = ResourceKey.of("foo", String.class);
+        ResourceKey<String> key = new ResourceKey<>("bar", String.class);
+
+        assertThat(serializeAndDeserialize(canonicalKey)).as("canonical").isSameAs(canonicalKey);
+        Object deserializedKey = serializeAndDeserialize(key);
+        assertThat(deserializedKey).as("non-canonical").isEqualTo(key);
+        assertThat(deserializedKey.hashCode()).as("hash code").isEqualTo(key.hashCode());
+        ResourceKey<String> qualifiedKey = new ResourceKey<>("bar", String.class, 1);
+        assertThat(serializeAndDeserialize(qualifiedKey)).as("qualified").isEqualTo(qualifiedKey);
+    }
+
+    private static Object serializeAndDeserialize(Object object) throws Exception {
+        ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+        try (ObjectOutputStream objectOut = new ObjectOutputStream(bytesOut)) {
+            objectOut.writeObject(object);
+        }
+        try (ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(bytesOut.toByteArray()))) {
+            return objectIn.readObject();
+        }
+    }
+
+}
@@ -5,6 +5,7 @@ import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -13,6 +14,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Stream;
@@ -75,6 +78,136 @@ class ResourceManagerTest {
                 .isInstanceOf(DuplicateKeyException.class);
     }
 
+    @ParameterizedTest
+    @MethodSource("provideFilled")
+    void testRegisterAll(ResourceManager resourceManager) {
+        resourceManager.registerAll(Arrays.asList(
+                Registration.of(key("c"), ResourceManagerTest::create, key("b")),
+                Registration.of(key("b"), ResourceManagerTest::create, key("a"), key("light")),
+                Registration.of(key("a"), ResourceManagerTest::create)));
+        resourceManager.open(key("c"));
+
+        assertThat(resourceManager.size()).as("size").isEqualTo(13);
+        assertThat(resourceManager.openKeySet()).as("open keys").isEqualTo(keys("light", "a", "b", "c"));
+    }
+
+    @ParameterizedTest
+    @MethodSource("provideFilled")
+    void testRegisterAllInvalid(ResourceManager resourceManager) {
+        assertThatThrownBy(() -> resourceManager.registerAll(Arrays.asList(
+                Registration.of(key("a"), ResourceManagerTest::create),
+                Registration.of(key("light"), ResourceManagerTest::create))))
+                .as("registered duplicate")
+                .isInstanceOf(DuplicateKeyException.class);
+        assertThatThrownBy(() -> resourceManager.registerAll(Arrays.asList(
+                Registration.of(key("a"), ResourceManagerTest::create),
+                Registration.of(key("a"), ResourceManagerTest::create))))
+                .as("batch duplicate")
+                .isInstanceOf(DuplicateKeyException.class);
+        assertThatThrownBy(() -> resourceManager.registerAll(Arrays.asList(
+                Registration.of(key("a"), ResourceManagerTest::create),
+                Registration.of(key("b"), ResourceManagerTest::create, key("foo")))))
+                .as("missing dependency")
+                .isInstanceOf(NoSuchElementException.class);
+        assertThatThrownBy(() -> resourceManager.registerAll(Arrays.asList(
+                Registration.of(key("a"), ResourceManagerTest::create, key("c")),
+                Registration.of(key("b"), ResourceManagerTest::create, key("a")),
+                Registration.of(key("c"), ResourceManagerTest::create, key("b")))))
+                .as("cycle")
+                .isInstanceOf(CyclicDependencyException.class);
+        assertThat(resourceManager.size()).as("size").isEqualTo(10);
+        assertThat(resourceManager.containsKey(key("a"))).as("contains a").isFalse();
+    }
+
+    @ParameterizedTest
+    @MethodSource("provideFilled")
+    void testSnapshot(ResourceManager resourceManager) {
+        resourceManager.open(key("shot"));
+        ResourceSnapshot snapshot = resourceManager.snapshot();
+        resourceManager.closeAll();
+        resourceManager.remove(key("light"));
+
+        assertThat(snapshot.size()).as("size").isEqualTo(10);
+        assertThat(snapshot.containsKey(key("light"))).as("contains light").isTrue();
+        assertThat(snapshot.isOpen(key("camera"))).as("camera is open").isTrue();
+        assertThat(snapshot.countOpen()).as("open count").isEqualTo(4);
+        assertThat(snapshot.keySet()).as("keys").isEqualTo(keys(
+                "light", "camera", "cameraman", "shot", "movie",
+                "fire", "cookbook", "chef", "cooking", "cookingshow"));
+        assertThat(snapshot.openKeySet()).as("open keys").isEqualTo(keys(
+                "light", "camera", "cameraman", "shot"));
+        assertThat(snapshot.closedKeySet()).as("closed keys").isEqualTo(keys(
+                "movie", "fire", "cookbook", "chef", "cooking", "cookingshow"));
+        assertThat(resourceManager.snapshot().hasOpen()).as("has open").isFalse();
+        assertThat(resourceManager.snapshot().size()).as("new size").isEqualTo(9);
+    }
+
+    @ParameterizedTest
+    @MethodSource("provideFilled")
+    void testHandle(ResourceManager resourceManager) {
+        ResourceHandle<TestResource> handle = resourceManager.handle(key("shot"));
+
+        assertThat(handle.getKey()).as("key").isEqualTo(key("shot"));
+        assertThat(handle.get()).as("closed").isNull();
+
+        TestResource resource = handle.open();
+
+        assertThat(handle.get()).as("open").isSameAs(resource);
+        assertThat(resourceManager.isOpen(key("camera"))).as("camera is open").isTrue();
+
+        resourceManager.close(key("camera"));
+
+        assertThat(handle.isOpen()).as("closed with dependency").isFalse();
+
+        TestResource reopenedResource = resourceManager.open(key("shot"));
+
+        assertThat(handle.get()).as("reopened").isSameAs(reopenedResource).isNotSameAs(resource);
+        assertThatThrownBy(() -> resourceManager.handle(key("foo"))).as("missing key")
+                .isInstanceOf(NoSuchElementException.class);
+    }
+
+    @ParameterizedTest
+    @MethodSource("provideFilled")
+    void testAcquire(ResourceManager resourceManager) {
+        try (ResourceLease<TestResource> lease = resourceManager.acquire(key("shot"))) {
+            assertThat(lease.getKey()).as("key").isEqualTo(key("shot"));
+            assertThat(lease.get()).as("resource").isSameAs(resourceManager.get(key("shot")));
+        }
+        resourceManager.close(key("shot"));
+
+        assertThat(resourceManager.isOpen(key("shot"))).as("shot is open").isFalse();
+    }
+
+    @ParameterizedTest
+    @MethodSource("provideFilled")
+    void testOpenWithTimeout(ResourceManager resourceManager) {
+        TestResource resource = resourceManager.open(key("shot"), Duration.ofSeconds(5));
+
+        assertThat(resource).as("resource").isSameAs(resourceManager.get(key("shot")));
+        assertThat(resourceManager.isOpen(key("light"))).as("dependency is open").isTrue();
+    }
+
+    @ParameterizedTest
+    @MethodSource("provideFilled")
+    void testTransitiveCycle(ResourceManager resourceManager) {
+        resourceManager.register(key("b"), ResourceManagerTest::create, key("a"));
+        resourceManager.register(key("c"), ResourceManagerTest::create, key("b"));
+        
+        assertThatThrownBy(() -> resourceManager.register(key("a"), ResourceManagerTest::create, key("c")))
+                .as("transitive cycle")
+                .isInstanceOf(CyclicDependencyException.class);
+        assertThatThrownBy(() -> resourceManager.register(key("d"), ResourceManagerTest::create, key("d")))
+                .as("self dependency")
+                .isInstanceOf(CyclicDependencyException.class);
+        assertThat(resourceManager.containsKey(key("a"))).as("contains a").isFalse();
+        assertThat(resourceManager.containsKey(key("d"))).as("contains d").isFalse();
+
+        resourceManager.register(key("a"), ResourceManagerTest::create, key("light"));
+        resourceManager.open(key("c"));
+
+        assertThat(resourceManager.openKeySet()).as("open keys").isEqualTo(keys("light", "a", "b", "c"));
+    }
+
     @ParameterizedTest
     @MethodSource("provideFilled")
     void testOpen(ResourceManager resourceManager) {
@@ -121,6 +254,21 @@ class ResourceManagerTest {
         assertThat(resourceManager.countOpen()).as("open count").isEqualTo(9);
     }
 
+    @ParameterizedTest
+    @MethodSource("provideEmpty")
+    void testDependantRegisteredFirst(ResourceManager resourceManager) {
+        resourceManager.register(key("b"), ResourceManagerTest::create, key("a"));
+        resourceManager.register(key("c"), ResourceManagerTest::create, key("b"));
+        resourceManager.register(key("a"), ResourceManagerTest::create);
+        resourceManager.open(key("c"));
+        
+        assertThat(resourceManager.openKeySet()).as("open keys").isEqualTo(keys("a", "b", "c"));
+
+        resourceManager.close(key("a"));
+
+        assertThat(resourceManager.hasOpen()).as("has open").isFalse();
+    }
+
     @ParameterizedTest
     @MethodSource("provideFilled")
     void testOpenNonExisting(ResourceManager resourceManager) {
@@ -140,6 +288,42 @@ class ResourceManagerTest {
                 .containsSubsequence(key("cameraman"), key("shot"));
     }
 
+    @ParameterizedTest
+    @MethodSource("provideFilled")
+    void testOpenAsync(ResourceManager resourceManager) throws Exception {
+        TestResource movie = resourceManager.openAsync(key("movie")).get(5, TimeUnit.SECONDS);
+        
+        assertThat(movie.isClosed()).as("movie is closed").isFalse();
+        assertThat(resourceManager.openKeySet()).as("open keys").isEqualTo(keys(
+                "light", "camera", "cameraman", "shot", "movie"));
+    }
+
+    @ParameterizedTest
+    @MethodSource("provideFilled")
+    void testOpenAsyncNonExisting(ResourceManager resourceManager) {
+        assertThatThrownBy(() -> resourceManager.openAsync(key("foo")).get(5, TimeUnit.SECONDS))
+                .as("openAsyncNonExisting")
+                .isInstanceOf(ExecutionException.class)
+                .extracting(e -> e.getCause()).as("cause")
+                .isInstanceOf(NoSuchElementException.class);
+    }
+
+    @ParameterizedTest
+    @MethodSource("provideFilled")
+    void testCloseAsync(ResourceManager resourceManager) throws Exception {
+        TestResource light = resourceManager.open(key("light"));
+        resourceManager.open(key("movie"));
+        resourceManager.closeAsync(key("light")).get(5, TimeUnit.SECONDS);
+        
+        assertThat(light.isClosed()).as("light is off").isTrue();
+        assertThat(resourceManager.openKeySet()).as("open keys").isEqualTo(keys(
+                "camera", "cameraman"));
+
+        resourceManager.closeAllAsync().get(5, TimeUnit.SECONDS);
+
+        assertThat(resourceManager.hasOpen()).as("has open").isFalse();
+    }
+
     @ParameterizedTest
     @MethodSource("provideFilled")
     void testGetUnopened(ResourceManager resourceManager) {
@@ -0,0 +1,146 @@
+package hu.webarticum.resourcemanager.resource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class ResourcePoolTest {
+
+    private static final ResourceKey<StringBuilder> CONFIG_KEY = ResourceKey.of("config", StringBuilder.class);
+
+    private static final ResourceKey<StringBuilder> PARSER_KEY = ResourceKey.of("parser", StringBuilder.class);
+
+
+    @Test
+    void testBorrowAndReturn() {
+        ResourceManager resourceManager = new DefaultResourceManager();
+        AtomicInteger createCount = new AtomicInteger();
+        resourceManager.registerPool(
+                PARSER_KEY,
+                (manager, key) -> new StringBuilder("parser" + createCount.incrementAndGet()),
+                (manager, key, value) -> {}, 1, 2);
+
+        ResourceLease<StringBuilder> lease1 = resourceManager.borrow(PARSER_KEY);
+        ResourceLease<StringBuilder> lease2 = resourceManager.borrow(PARSER_KEY);
+        ResourcePool<StringBuilder> pool = resourceManager.get(ResourcePool.keyOf(PARSER_KEY));
+
+        assertThat(lease1.get().toString()).as("first instance").isEqualTo("parser1");
+        assertThat(lease2.get().toString()).as("second instance").isEqualTo("parser2");
+        assertThat(pool.size()).as("size").isEqualTo(2);
+        assertThat(pool.countIdle()).as("idle count").isZero();
+
+        StringBuilder instance1 = lease1.get();
+        lease1.close();
+        lease1.close();
+
+        assertThat(pool.countIdle()).as("idle count").isEqualTo(1);
+
+        try (ResourceLease<StringBuilder> lease3 = resourceManager.borrow(PARSER_KEY)) {
+            assertThat(lease3.get()).as("reused instance").isSameAs(instance1);
+        }
+        lease2.close();
+
+        assertThat(createCount.get()).as("create count").isEqualTo(2);
+        assertThat(pool.countIdle()).as("idle count").isEqualTo(2);
+    }
+
+    @Test
+    void testBorrowWaitsForReturn() throws Exception {
+        ResourceManager resourceManager = new DefaultResourceManager();
+        resourceManager.registerPool(
+                PARSER_KEY, (manager, key) -> new StringBuilder("parser"), (manager, key, value) -> {}, 0, 1);
+        ResourceLease<StringBuilder> lease = resourceManager.borrow(PARSER_KEY);
+
+        FutureTask<ResourceLease<StringBuilder>> borrowTask = runUntilBlocked(() -> resourceManager.borrow(PARSER_KEY));
+
+        assertThat(borrowTask.isDone()).as("borrow is done").isFalse();
+
+        StringBuilder instance = lease.get();
+        lease.close();
+
+        try (ResourceLease<StringBuilder> nextLease = borrowTask.get(5, TimeUnit.SECONDS)) {
+            assertThat(nextLease.get()).as("next instance").isSameAs(instance);
+        }
+    }
+
+    @Test
+    void testClosingDependencyClosesPool() throws Exception {
+        ResourceManager resourceManager = new DefaultResourceManager();
+        AtomicInteger closeCount = new AtomicInteger();
+        resourceManager.register(CONFIG_KEY, (manager, key) -> new StringBuilder("config"), (manager, key, value) -> {});
+        resourceManager.registerPool(
+                PARSER_KEY,
+                (manager, key) -> new StringBuilder(manager.open(CONFIG_KEY)),
+                (manager, key, value) -> closeCount.incrementAndGet(), 2, 4, CONFIG_KEY);
+        ResourceLease<StringBuilder> lease = resourceManager.borrow(PARSER_KEY);
+
+        FutureTask<Void> closeTask = runUntilBlocked(() -> {
+            resourceManager.close(CONFIG_KEY);
+            return null;
+        });
+
+        assertThat(closeTask.isDone()).as("close is done").isFalse();
+        assertThat(closeCount.get()).as("close count").isZero();
+
+        lease.close();
+        closeTask.get(5, TimeUnit.SECONDS);
+
+        assertThat(closeCount.get()).as("close count").isEqualTo(2);
+        assertThat(resourceManager.isOpen(ResourcePool.keyOf(PARSER_KEY))).as("pool is open").isFalse();
+    }
+
+    @Test
+    void testPoolsOfSameNameAndDifferentTypes() {
+        ResourceManager resourceManager = new DefaultResourceManager();
+        ResourceKey<Integer> counterKey = ResourceKey.of(PARSER_KEY.getName(), Integer.class);
+        resourceManager.registerPool(
+                PARSER_KEY, (manager, key) -> new StringBuilder("parser"), (manager, key, value) -> {}, 0, 1);
+        resourceManager.registerPool(counterKey, (manager, key) -> 42, (manager, key, value) -> {}, 0, 1);
+
+        try (ResourceLease<StringBuilder> parserLease = resourceManager.borrow(PARSER_KEY);
+                ResourceLease<Integer> counterLease = resourceManager.borrow(counterKey)) {
+            assertThat(parserLease.get().toString()).as("parser").isEqualTo("parser");
+            assertThat(counterLease.get()).as("counter").isEqualTo(42);
+        }
+        assertThat(ResourcePool.keyOf(PARSER_KEY)).as("pool keys")
+                .isEqualTo(ResourcePool.keyOf(new ResourceKey<>(PARSER_KEY.getName(), StringBuilder.class)))
+                .isNotEqualTo(ResourcePool.keyOf(counterKey));
+    }
+
+    @Test
+    void testIllegalSizes() {
+        ResourceManager resourceManager = new DefaultResourceManager();
+
+        assertThatThrownBy(() -> resourceManager.registerPool(
+                PARSER_KEY, (manager, key) -> new StringBuilder(), (manager, key, value) -> {}, 2, 1))
+                        .as("min size greater than max size")
+                        .isInstanceOf(IllegalArgumentException.class);
+        assertThat(resourceManager.isEmpty()).as("empty").isTrue();
+    }
+
+    /**
+     * Runs the task on a new thread, and returns when the thread waits (or the task is done)
+     */
+    private static <T> FutureTask<T> runUntilBlocked(Callable<T> callable) {
+        FutureTask<T> task = new FutureTask<>(callable);
+        Thread thread = new Thread(task);
+        thread.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        Thread.State state;
+        while ((state = thread.getState()) != Thread.State.WAITING && state != Thread.State.TIMED_WAITING) {
+            if (task.isDone()) {
+                break;
+            }
+            assertThat(System.nanoTime() - deadline).as("nanos after blocking deadline").isLessThan(0L);
+            Thread.yield();
+        }
+        return task;
+    }
+
+}
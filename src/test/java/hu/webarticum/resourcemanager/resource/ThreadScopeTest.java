@@ -0,0 +1,127 @@
+package hu.webarticum.resourcemanager.resource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class ThreadScopeTest {
+
+    private static final ResourceKey<StringBuilder> CONFIG_KEY = ResourceKey.of("config", StringBuilder.class);
+
+    private static final ResourceKey<StringBuilder> BUFFER_KEY = ResourceKey.of("buffer", StringBuilder.class);
+
+
+    @Test
+    void testInstancePerThread() throws Exception {
+        ResourceManager resourceManager = new DefaultResourceManager();
+        resourceManager.registerThreadScoped(
+                BUFFER_KEY, (manager, key) -> new StringBuilder(), (manager, key, value) -> {});
+        ResourceHandle<StringBuilder> handle = resourceManager.threadHandle(BUFFER_KEY);
+
+        assertThat(handle.get()).as("instance before opening").isNull();
+
+        StringBuilder instance = handle.open();
+        StringBuilder otherInstance = CompletableFuture.supplyAsync(handle::open).get(5, TimeUnit.SECONDS);
+
+        assertThat(handle.open()).as("same thread").isSameAs(instance);
+        assertThat(handle.get()).as("get").isSameAs(instance);
+        assertThat(otherInstance).as("other thread").isNotSameAs(instance);
+        assertThat(resourceManager.get(ThreadScope.keyOf(BUFFER_KEY)).size()).as("size").isEqualTo(2);
+    }
+
+    @Test
+    void testScopesOfSameNameAndDifferentTypes() {
+        ResourceManager resourceManager = new DefaultResourceManager();
+        ResourceKey<Integer> counterKey = ResourceKey.of(BUFFER_KEY.getName(), Integer.class);
+        resourceManager.registerThreadScoped(
+                BUFFER_KEY, (manager, key) -> new StringBuilder("buffer"), (manager, key, value) -> {});
+        resourceManager.registerThreadScoped(counterKey, (manager, key) -> 42, (manager, key, value) -> {});
+
+        assertThat(resourceManager.threadHandle(BUFFER_KEY).open().toString()).as("buffer").isEqualTo("buffer");
+        assertThat(resourceManager.threadHandle(counterKey).open()).as("counter").isEqualTo(42);
+        assertThat(ThreadScope.keyOf(BUFFER_KEY)).as("scope keys").isNotEqualTo(ThreadScope.keyOf(counterKey));
+    }
+
+    @Test
+    void testClosingDependencyClosesInstances() throws Exception {
+        ResourceManager resourceManager = new DefaultResourceManager();
+        AtomicInteger closeCount = new AtomicInteger();
+        resourceManager.register(CONFIG_KEY, (manager, key) -> new StringBuilder("config"), (manager, key, value) -> {});
+        resourceManager.registerThreadScoped(
+                BUFFER_KEY,
+                (manager, key) -> new StringBuilder(manager.open(CONFIG_KEY)),
+                (manager, key, value) -> closeCount.incrementAndGet(),
+                CONFIG_KEY);
+        ResourceHandle<StringBuilder> handle = resourceManager.threadHandle(BUFFER_KEY);
+        StringBuilder instance = handle.open();
+        CompletableFuture.supplyAsync(handle::open).get(5, TimeUnit.SECONDS);
+
+        resourceManager.close(CONFIG_KEY);
+
+        assertThat(closeCount.get()).as("close count").isEqualTo(2);
+        assertThat(handle.get()).as("instance after closing").isNull();
+        assertThat(handle.open()).as("new instance").isNotSameAs(instance);
+        assertThat(resourceManager.isOpen(CONFIG_KEY)).as("config is open").isTrue();
+    }
+
+    @Test
+    void testInstancesOfTerminatedThreadsAreClosed() throws Exception {
+        ResourceManager resourceManager = new DefaultResourceManager();
+        AtomicInteger closeCount = new AtomicInteger();
+        resourceManager.registerThreadScoped(
+                BUFFER_KEY, (manager, key) -> new StringBuilder(),
+                (manager, key, value) -> closeCount.incrementAndGet());
+        ResourceHandle<StringBuilder> handle = resourceManager.threadHandle(BUFFER_KEY);
+        Thread thread = new Thread(handle::open);
+        thread.start();
+        thread.join();
+
+        handle.open();
+
+        assertThat(closeCount.get()).as("close count").isEqualTo(1);
+        assertThat(resourceManager.get(ThreadScope.keyOf(BUFFER_KEY)).size()).as("size").isEqualTo(1);
+    }
+
+    @Test
+    void testScopeClosedDirectly() throws Exception {
+        ResourceManager resourceManager = new DefaultResourceManager();
+        resourceManager.registerThreadScoped(
+                BUFFER_KEY, (manager, key) -> new StringBuilder(), (manager, key, value) -> {});
+        ResourceHandle<StringBuilder> handle = resourceManager.threadHandle(BUFFER_KEY);
+        StringBuilder instance = handle.open();
+        ThreadScope<StringBuilder> scope = resourceManager.get(ThreadScope.keyOf(BUFFER_KEY));
+
+        scope.close();
+
+        StringBuilder newInstance = CompletableFuture.supplyAsync(handle::open).get(5, TimeUnit.SECONDS);
+        assertThat(newInstance).as("new instance").isNotSameAs(instance);
+        assertThat(resourceManager.get(ThreadScope.keyOf(BUFFER_KEY))).as("new scope").isNotSameAs(scope);
+    }
+
+    @Test
+    void testFailureOfClosingInstanceOfTerminatedThread() throws Exception {
+        ResourceManager resourceManager = new DefaultResourceManager();
+        resourceManager.registerThreadScoped(
+                BUFFER_KEY, (manager, key) -> new StringBuilder(),
+                (manager, key, value) -> {
+                    if (value.toString().equals("terminated")) {
+                        throw new IllegalStateException("Failing closer");
+                    }
+                });
+        ResourceHandle<StringBuilder> handle = resourceManager.threadHandle(BUFFER_KEY);
+        Thread thread = new Thread(() -> handle.open().append("terminated"));
+        thread.start();
+        thread.join();
+
+        assertThat(handle.open()).as("instance").isNotNull();
+        assertThat(resourceManager.get(ThreadScope.keyOf(BUFFER_KEY)).size()).as("size").isEqualTo(1);
+        assertThatThrownBy(() -> resourceManager.close(ThreadScope.keyOf(BUFFER_KEY))).as("reported on close")
+                .isInstanceOf(ClosingFailedException.class);
+    }
+
+}